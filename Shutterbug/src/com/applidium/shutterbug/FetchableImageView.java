@@ -8,8 +8,10 @@ import android.graphics.drawable.Drawable;
 import android.util.AttributeSet;
 import android.widget.ImageView;
 
+import com.applidium.shutterbug.utils.DownloadRequest;
 import com.applidium.shutterbug.utils.ShutterbugManager;
 import com.applidium.shutterbug.utils.ShutterbugManager.ShutterbugManagerListener;
+import com.applidium.shutterbug.utils.ShutterbugManager.ShutterbugManagerPreviewListener;
 
 public class FetchableImageView extends ImageView implements ShutterbugManagerListener {
     public interface FetchableImageViewListener {
@@ -18,7 +20,11 @@ public class FetchableImageView extends ImageView implements ShutterbugManagerLi
         void onImageFailure(String url);
     }
 
-    private FetchableImageViewListener mListener;
+    private FetchableImageViewListener       mListener;
+    private boolean                          mProgressive;
+    private boolean                          mExactSize;
+    private boolean                          mRgb565Allowed;
+    private ShutterbugManagerPreviewListener mPreviewListener = new PreviewListener();
 
     public FetchableImageView(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -32,6 +38,37 @@ public class FetchableImageView extends ImageView implements ShutterbugManagerLi
         mListener = listener;
     }
 
+    public boolean isProgressive() {
+        return mProgressive;
+    }
+
+    // When progressive, large images are shown in low resolution while they
+    // download
+    public void setProgressive(boolean progressive) {
+        mProgressive = progressive;
+    }
+
+    public boolean isExactSize() {
+        return mExactSize;
+    }
+
+    // When set, images loaded with a desired size are scaled down to just
+    // cover it instead of being only sampled by powers of 2, which keeps
+    // thumbnails smaller in memory
+    public void setExactSize(boolean exactSize) {
+        mExactSize = exactSize;
+    }
+
+    public boolean isRgb565Allowed() {
+        return mRgb565Allowed;
+    }
+
+    // When set, opaque images are decoded with RGB_565, which takes half the
+    // memory
+    public void setRgb565Allowed(boolean rgb565Allowed) {
+        mRgb565Allowed = rgb565Allowed;
+    }
+
     public void setImage(String url) {
         setImage(url, new ColorDrawable(getContext().getResources().getColor(R.color.transparent)));
     }
@@ -50,15 +87,24 @@ public class FetchableImageView extends ImageView implements ShutterbugManagerLi
 
     public void setImage(String url, Drawable placeholderDrawable, int desiredHeight, int desiredWidth) {
         final ShutterbugManager manager = ShutterbugManager.getSharedImageManager(getContext());
-        manager.cancel((ShutterbugManagerListener) this);
+        cancel(manager);
         setImageDrawable(placeholderDrawable);
         if (url != null) {
-            manager.download(url, (ShutterbugManagerListener) this, desiredHeight, desiredWidth);
+            DownloadRequest downloadRequest = new DownloadRequest(url, mProgressive ? mPreviewListener : (ShutterbugManagerListener) this, desiredHeight,
+                    desiredWidth);
+            downloadRequest.setExactSize(mExactSize);
+            downloadRequest.setRgb565Allowed(mRgb565Allowed);
+            manager.download(downloadRequest);
         }
     }
 
     public void cancelCurrentImageLoad() {
-        ShutterbugManager.getSharedImageManager(getContext()).cancel((ShutterbugManagerListener) this);
+        cancel(ShutterbugManager.getSharedImageManager(getContext()));
+    }
+
+    private void cancel(ShutterbugManager manager) {
+        manager.cancel((ShutterbugManagerListener) this);
+        manager.cancel(mPreviewListener);
     }
 
     @Override
@@ -77,4 +123,21 @@ public class FetchableImageView extends ImageView implements ShutterbugManagerLi
         }
     }
 
+    // Shows the previews of large images while they download
+    private class PreviewListener implements ShutterbugManagerPreviewListener {
+        @Override
+        public void onImagePreview(ShutterbugManager imageManager, Bitmap preview, String url) {
+            setImageBitmap(preview);
+        }
+
+        @Override
+        public void onImageSuccess(ShutterbugManager imageManager, Bitmap bitmap, String url) {
+            FetchableImageView.this.onImageSuccess(imageManager, bitmap, url);
+        }
+
+        @Override
+        public void onImageFailure(ShutterbugManager imageManager, String url) {
+            FetchableImageView.this.onImageFailure(imageManager, url);
+        }
+    }
 }
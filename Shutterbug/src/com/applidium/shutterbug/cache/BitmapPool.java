@@ -0,0 +1,183 @@
+package com.applidium.shutterbug.cache;
+
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+// Bitmaps evicted from the memory cache, kept around so that the next decodes
+// can reuse their memory through BitmapFactory.Options.inBitmap instead of
+// allocating new bitmaps. Bitmaps are bucketed by allocation size.
+public class BitmapPool {
+    // On KitKat and above a bitmap can be reused for any smaller image, but we
+    // don't want to waste more than this factor of its memory
+    private final static int                           MAX_SIZE_MULTIPLE = 2;
+
+    private final TreeMap<Integer, LinkedList<Bitmap>> mBuckets          = new TreeMap<Integer, LinkedList<Bitmap>>();
+    // Least recently pooled first
+    private final LinkedList<Bitmap>                   mBitmaps          = new LinkedList<Bitmap>();
+    private int                                        mSize;
+    private int                                        mMaxSize;
+
+    private int                                        mPutCount;
+    private int                                        mEvictionCount;
+    private int                                        mHitCount;
+    private int                                        mMissCount;
+
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    public synchronized void put(Bitmap bitmap) {
+        if (!isSupported() || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int size = getBitmapSize(bitmap);
+        if (size > mMaxSize) {
+            return;
+        }
+        LinkedList<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            mBuckets.put(size, bucket);
+        }
+        bucket.addLast(bitmap);
+        mBitmaps.addLast(bitmap);
+        mSize += size;
+        mPutCount++;
+        trimToSize(mMaxSize);
+    }
+
+    // Returns a bitmap that BitmapFactory can decode an image of the given
+    // size and config into, or null if there is none
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (!isSupported() || width <= 0 || height <= 0) {
+            return null;
+        }
+        if (config == null) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        int size = width * height * getBytesPerPixel(config);
+        Bitmap bitmap;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            bitmap = takeLargeEnough(size);
+        } else {
+            // Before KitKat the reused bitmap must have the exact same size
+            bitmap = takeExactMatch(size, width, height, config);
+        }
+        if (bitmap != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return bitmap;
+    }
+
+    private Bitmap takeLargeEnough(int size) {
+        Integer bucketSize = mBuckets.ceilingKey(size);
+        if (bucketSize == null || bucketSize > size * MAX_SIZE_MULTIPLE) {
+            return null;
+        }
+        return take(bucketSize, mBuckets.get(bucketSize).getLast());
+    }
+
+    private Bitmap takeExactMatch(int size, int width, int height, Bitmap.Config config) {
+        LinkedList<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            return null;
+        }
+        for (Bitmap bitmap : bucket) {
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+                return take(size, bitmap);
+            }
+        }
+        return null;
+    }
+
+    private Bitmap take(int bucketSize, Bitmap bitmap) {
+        removeFromBucket(bucketSize, bitmap);
+        mBitmaps.remove(bitmap);
+        mSize -= bucketSize;
+        return bitmap;
+    }
+
+    private void removeFromBucket(int bucketSize, Bitmap bitmap) {
+        LinkedList<Bitmap> bucket = mBuckets.get(bucketSize);
+        bucket.remove(bitmap);
+        if (bucket.isEmpty()) {
+            mBuckets.remove(bucketSize);
+        }
+    }
+
+    private void trimToSize(int maxSize) {
+        while (mSize > maxSize && !mBitmaps.isEmpty()) {
+            Bitmap bitmap = mBitmaps.removeFirst();
+            int size = getBitmapSize(bitmap);
+            removeFromBucket(size, bitmap);
+            mSize -= size;
+            mEvictionCount++;
+        }
+    }
+
+    public synchronized void evictAll() {
+        trimToSize(-1);
+    }
+
+    public synchronized void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    public static int getBitmapSize(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // A reused bitmap may be larger than the image it holds
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    public static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+
+    public synchronized final int size() {
+        return mSize;
+    }
+
+    public synchronized final int maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized final int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized final int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized final int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized final int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized final String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("BitmapPool[maxSize=%d,size=%d,hits=%d,misses=%d,hitRate=%d%%]", mMaxSize, mSize, mHitCount, mMissCount, hitPercent);
+    }
+}
@@ -0,0 +1,187 @@
+package com.applidium.shutterbug.cache;
+
+// What we know about a disk cache entry without reading the image itself.
+// Stored as "name value" lines in its own value of the entry, unknown names are
+// ignored so fields can be added without invalidating existing entries.
+public class CacheMetadata {
+    private final static String WIDTH         = "width";
+    private final static String HEIGHT        = "height";
+    private final static String MIME_TYPE     = "mime";
+    private final static String ETAG          = "etag";
+    private final static String LAST_MODIFIED = "last-modified";
+    private final static String EXPIRES       = "expires";
+    private final static String LENGTH        = "length";
+
+    private int                 mWidth        = -1;
+    private int                 mHeight       = -1;
+    private String              mMimeType;
+    // Validators and freshness sent by the server, as header values
+    private String              mEtag;
+    private String              mLastModified;
+    // In milliseconds since the epoch, 0 if the server did not say
+    private long                mExpires;
+    // Size of the whole image in bytes, 0 if unknown
+    private long                mLength;
+
+    public static CacheMetadata fromString(String string) {
+        CacheMetadata metadata = new CacheMetadata();
+        if (string == null) {
+            return metadata;
+        }
+        for (String line : string.split("\n")) {
+            int separator = line.indexOf(' ');
+            if (separator == -1) {
+                continue;
+            }
+            String name = line.substring(0, separator);
+            String value = line.substring(separator + 1);
+            try {
+                if (WIDTH.equals(name)) {
+                    metadata.mWidth = Integer.parseInt(value);
+                } else if (HEIGHT.equals(name)) {
+                    metadata.mHeight = Integer.parseInt(value);
+                } else if (MIME_TYPE.equals(name)) {
+                    metadata.mMimeType = value;
+                } else if (ETAG.equals(name)) {
+                    metadata.mEtag = value;
+                } else if (LAST_MODIFIED.equals(name)) {
+                    metadata.mLastModified = value;
+                } else if (EXPIRES.equals(name)) {
+                    metadata.mExpires = Long.parseLong(value);
+                } else if (LENGTH.equals(name)) {
+                    metadata.mLength = Long.parseLong(value);
+                }
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+            }
+        }
+        return metadata;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        if (hasSize()) {
+            appendLine(builder, WIDTH, Integer.toString(mWidth));
+            appendLine(builder, HEIGHT, Integer.toString(mHeight));
+        }
+        if (mMimeType != null) {
+            appendLine(builder, MIME_TYPE, mMimeType);
+        }
+        if (mEtag != null) {
+            appendLine(builder, ETAG, mEtag);
+        }
+        if (mLastModified != null) {
+            appendLine(builder, LAST_MODIFIED, mLastModified);
+        }
+        if (mExpires != 0) {
+            appendLine(builder, EXPIRES, Long.toString(mExpires));
+        }
+        if (mLength > 0) {
+            appendLine(builder, LENGTH, Long.toString(mLength));
+        }
+        return builder.toString();
+    }
+
+    private static void appendLine(StringBuilder builder, String name, String value) {
+        builder.append(name).append(' ').append(value).append('\n');
+    }
+
+    public boolean hasSize() {
+        return mWidth > 0 && mHeight > 0;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public void setSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    public void setMimeType(String mimeType) {
+        mMimeType = mimeType;
+    }
+
+    public String getEtag() {
+        return mEtag;
+    }
+
+    public void setEtag(String etag) {
+        mEtag = etag;
+    }
+
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        mLastModified = lastModified;
+    }
+
+    public long getExpires() {
+        return mExpires;
+    }
+
+    public void setExpires(long expires) {
+        mExpires = expires;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    public void setLength(long length) {
+        mLength = length;
+    }
+
+    // Entries the server gave no freshness information for are trusted until
+    // they are evicted
+    public boolean isStale(long now) {
+        return mExpires != 0 && now >= mExpires;
+    }
+
+    public boolean hasValidators() {
+        return mEtag != null || mLastModified != null;
+    }
+
+    // Returns the validator that makes sure a resumed download continues the
+    // same image, or null if there is none. Weak ETags can't be used for that.
+    public String getRangeValidator() {
+        if (mEtag != null && !mEtag.startsWith("W/")) {
+            return mEtag;
+        }
+        return mLastModified;
+    }
+
+    // Whether both describe the same image, whatever their freshness
+    public boolean isSameImage(CacheMetadata other) {
+        return mWidth == other.mWidth && mHeight == other.mHeight && mLength == other.mLength && equals(mMimeType, other.mMimeType)
+                && equals(mEtag, other.mEtag) && equals(mLastModified, other.mLastModified);
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    // Takes the validators and freshness of a revalidation response, keeping
+    // the validators it did not repeat
+    public void updateFreshness(CacheMetadata response) {
+        if (response.mEtag != null) {
+            mEtag = response.mEtag;
+        }
+        if (response.mLastModified != null) {
+            mLastModified = response.mLastModified;
+        }
+        mExpires = response.mExpires;
+    }
+}
@@ -0,0 +1,27 @@
+package com.applidium.shutterbug.cache;
+
+// An image that was just written to the disk cache. Small images also keep
+// their bytes so they can be decoded without reading them back from the disk.
+public class CachedImage {
+    private String        mCacheKey;
+    private byte[]        mData;
+    private CacheMetadata mMetadata;
+
+    public CachedImage(String cacheKey, byte[] data, CacheMetadata metadata) {
+        mCacheKey = cacheKey;
+        mData = data;
+        mMetadata = metadata;
+    }
+
+    public String getCacheKey() {
+        return mCacheKey;
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    public CacheMetadata getMetadata() {
+        return mMetadata;
+    }
+}
@@ -17,24 +17,30 @@
 package com.applidium.shutterbug.cache;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -93,6 +99,10 @@ import java.util.concurrent.TimeUnit;
 public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
     static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String BINARY_JOURNAL_FILE = "journal.bin";
+    static final String BINARY_JOURNAL_FILE_TMP = "journal.bin.tmp";
+    static final int BINARY_MAGIC = 0x444c5243; // "DLRC"
+    static final int BINARY_VERSION_1 = 1;
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
     static final long ANY_SEQUENCE_NUMBER = -1;
@@ -100,6 +110,12 @@ public final class DiskLruCache implements Closeable {
     private static final String DIRTY = "DIRTY";
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
+    private static final int BINARY_CLEAN = 1;
+    private static final int BINARY_DIRTY = 2;
+    private static final int BINARY_REMOVE = 3;
+    private static final int BINARY_READ = 4;
+    /** Attempts of get() to open an entry without the lock before taking it. */
+    private static final int MAX_UNLOCKED_READ_ATTEMPTS = 3;
 
     /* XXX From java.util.Arrays */
     @SuppressWarnings("unchecked")
@@ -224,20 +240,48 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * Caches opened with a binary journal hold the same records in a file named
+     * "journal.bin", which is read much faster on open. Its header is four
+     * big-endian ints: the magic number 0x444c5243, the version of the format,
+     * the application's version and the value count. Each record is a state
+     * byte (1 CLEAN, 2 DIRTY, 3 REMOVE, 4 READ), the key in modified UTF-8
+     * prefixed by its length on two bytes, and for CLEAN records the lengths
+     * of the values as unsigned varints. A truncated last record is ignored,
+     * and the journal is then rebuilt before new records are appended.
+     * Opening a cache with the other format than the one on the disk migrates
+     * its journal.
      */
 
     private final File directory;
+    private final boolean binaryJournal;
     private final File journalFile;
     private final File journalFileTmp;
+    /** The journal in the format this cache doesn't write, to migrate. */
+    private final File otherJournalFile;
+    private final File otherJournalFileTmp;
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
-    private long size = 0;
-    private Writer journalWriter;
+    /** Written under the cache lock, read without it by size(). */
+    private volatile long size = 0;
+    /** Null once the cache is closed. */
+    private JournalWriter journal;
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
     private int redundantOpCount;
 
+    /**
+     * When positive, reads are not journaled as they happen: the entries read
+     * are collected in access order and their READ records are appended at
+     * most once per interval, on flush() and on close(). Reads since the last
+     * batch only lose their recency if the process dies.
+     */
+    private long readRecordIntervalNanos = 0;
+    private final LinkedHashMap<String, Entry> unrecordedReads
+            = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    private long lastReadRecordTime = System.nanoTime();
+
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
@@ -251,24 +295,42 @@ public final class DiskLruCache implements Closeable {
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override public Void call() throws Exception {
             synchronized (DiskLruCache.this) {
-                if (journalWriter == null) {
+                if (journal == null) {
                     return null; // closed
                 }
                 trimToSize();
                 if (journalRebuildRequired()) {
-                    rebuildJournal();
-                    redundantOpCount = 0;
+                    rebuildJournalAsync();
+                }
+            }
+            return null;
+        }
+    };
+    /** Replaces a journal that a failed write may have left with a partial record. */
+    private final Callable<Void> journalRepairCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            synchronized (DiskLruCache.this) {
+                if (journal != null) {
+                    rebuildJournalAsync();
                 }
             }
             return null;
         }
     };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            boolean binaryJournal) {
         this.directory = directory;
         this.appVersion = appVersion;
-        this.journalFile = new File(directory, JOURNAL_FILE);
-        this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.binaryJournal = binaryJournal;
+        File textJournalFile = new File(directory, JOURNAL_FILE);
+        File textJournalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        File binaryJournalFile = new File(directory, BINARY_JOURNAL_FILE);
+        File binaryJournalFileTmp = new File(directory, BINARY_JOURNAL_FILE_TMP);
+        this.journalFile = binaryJournal ? binaryJournalFile : textJournalFile;
+        this.journalFileTmp = binaryJournal ? binaryJournalFileTmp : textJournalFileTmp;
+        this.otherJournalFile = binaryJournal ? textJournalFile : binaryJournalFile;
+        this.otherJournalFileTmp = binaryJournal ? textJournalFileTmp : binaryJournalFileTmp;
         this.valueCount = valueCount;
         this.maxSize = maxSize;
     }
@@ -285,6 +347,15 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, false);
+    }
+
+    /**
+     * Same as above, with a binary journal if {@code binaryJournal} is true.
+     * A journal written in the other format is migrated.
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            boolean binaryJournal) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -293,12 +364,30 @@ public final class DiskLruCache implements Closeable {
         }
 
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-        if (cache.journalFile.exists()) {
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize,
+                binaryJournal);
+        // after a crash during a migration, the journal in the new format is
+        // the complete one
+        File existingJournalFile = cache.journalFile.exists() ? cache.journalFile
+                : cache.otherJournalFile.exists() ? cache.otherJournalFile : null;
+        if (existingJournalFile != null) {
             try {
-                cache.readJournal();
+                boolean complete;
+                if (existingJournalFile.getName().equals(BINARY_JOURNAL_FILE)) {
+                    complete = cache.readBinaryJournal(existingJournalFile);
+                } else {
+                    complete = cache.readJournal(existingJournalFile);
+                }
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true));
+                if (existingJournalFile == cache.journalFile && complete) {
+                    cache.journal = cache.new JournalWriter(
+                            new BufferedOutputStream(new FileOutputStream(cache.journalFile, true)));
+                } else {
+                    // written in the other format, or ending with a truncated
+                    // record that new records must not follow
+                    cache.rebuildJournal();
+                }
+                deleteIfExists(cache.otherJournalFile);
                 return cache;
             } catch (IOException journalIsCorrupt) {
                 System.out.println("DiskLruCache " + directory + " is corrupt: "
@@ -309,13 +398,16 @@ public final class DiskLruCache implements Closeable {
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, binaryJournal);
         cache.rebuildJournal();
         return cache;
     }
 
-    private void readJournal() throws IOException {
-        InputStream in = new BufferedInputStream(new FileInputStream(journalFile));
+    /**
+     * Returns false if the journal ends with a truncated line.
+     */
+    private boolean readJournal(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
         try {
             String magic = /*Streams.*/readAsciiLine(in);
             String version = /*Streams.*/readAsciiLine(in);
@@ -332,10 +424,15 @@ public final class DiskLruCache implements Closeable {
             }
 
             while (true) {
+                in.mark(1);
+                if (in.read() == -1) {
+                    return true;
+                }
+                in.reset();
                 try {
                     readJournalLine(/*Streams.*/readAsciiLine(in));
-                } catch (EOFException endOfJournal) {
-                    break;
+                } catch (EOFException truncatedLine) {
+                    return false;
                 }
             }
         } finally {
@@ -374,12 +471,131 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * Returns false if the journal ends with a truncated record.
+     */
+    private boolean readBinaryJournal(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int magic = in.readInt();
+            int version = in.readInt();
+            int journalAppVersion = in.readInt();
+            int journalValueCount = in.readInt();
+            if (magic != BINARY_MAGIC
+                    || version != BINARY_VERSION_1
+                    || journalAppVersion != appVersion
+                    || journalValueCount != valueCount) {
+                throw new IOException("unexpected journal header: ["
+                        + Integer.toHexString(magic) + ", " + version + ", " + journalValueCount + "]");
+            }
+
+            while (true) {
+                int state = in.read();
+                if (state == -1) {
+                    return true;
+                }
+                try {
+                    readBinaryJournalRecord(state, in);
+                } catch (EOFException truncatedRecord) {
+                    return false;
+                }
+            }
+        } finally {
+            /*IoUtils.*/closeQuietly(in);
+        }
+    }
+
+    private void readBinaryJournalRecord(int state, DataInputStream in) throws IOException {
+        String key = in.readUTF();
+        if (state == BINARY_REMOVE) {
+            lruEntries.remove(key);
+            return;
+        }
+
+        long[] lengths = null;
+        if (state == BINARY_CLEAN) {
+            lengths = new long[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                lengths[i] = readVarLong(in);
+            }
+        }
+
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+
+        if (state == BINARY_CLEAN) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+        } else if (state == BINARY_DIRTY) {
+            entry.currentEditor = new Editor(entry);
+        } else if (state == BINARY_READ) {
+            // this work was already done by calling lruEntries.get()
+        } else {
+            throw new IOException("unexpected journal record: " + state + " " + key);
+        }
+    }
+
+    /**
+     * Writes a record for {@code entry} in the format of this cache's journal.
+     */
+    private void writeJournalRecord(DataOutputStream out, String state, Entry entry)
+            throws IOException {
+        if (!binaryJournal) {
+            String line = state + ' ' + entry.key;
+            if (state == CLEAN) {
+                line += entry.getLengths();
+            }
+            out.write((line + '\n').getBytes("UTF-8"));
+            return;
+        }
+        if (state == CLEAN) {
+            out.writeByte(BINARY_CLEAN);
+        } else if (state == DIRTY) {
+            out.writeByte(BINARY_DIRTY);
+        } else if (state == REMOVE) {
+            out.writeByte(BINARY_REMOVE);
+        } else {
+            out.writeByte(BINARY_READ);
+        }
+        out.writeUTF(entry.key);
+        if (state == CLEAN) {
+            for (long length : entry.lengths) {
+                writeVarLong(out, length);
+            }
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed journal length");
+    }
+
     /**
      * Computes the initial size and collects garbage as a part of opening the
      * cache. Dirty entries are assumed to be inconsistent and will be deleted.
      */
     private void processJournal() throws IOException {
         deleteIfExists(journalFileTmp);
+        deleteIfExists(otherJournalFileTmp);
         for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
             Entry entry = i.next();
             if (entry.currentEditor == null) {
@@ -398,36 +614,61 @@ public final class DiskLruCache implements Closeable {
     }
 
     /**
-     * Creates a new journal that omits redundant information. This replaces the
-     * current journal if it exists.
+     * Creates a new journal that omits redundant information, when the cache
+     * is created. Later rebuilds go through the journal thread.
      */
     private synchronized void rebuildJournal() throws IOException {
-        if (journalWriter != null) {
-            journalWriter.close();
-        }
+        writeJournal(buildJournal());
+        journal = new JournalWriter(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+    }
 
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp));
-        writer.write(MAGIC);
-        writer.write("\n");
-        writer.write(VERSION_1);
-        writer.write("\n");
-        writer.write(Integer.toString(appVersion));
-        writer.write("\n");
-        writer.write(Integer.toString(valueCount));
-        writer.write("\n");
-        writer.write("\n");
+    /**
+     * Queues a journal that omits redundant information to replace the current
+     * one. Only the journal is built under the lock, the journal thread writes
+     * it. Must be called with the cache lock held.
+     */
+    private void rebuildJournalAsync() throws IOException {
+        journal.rebuild(buildJournal());
+        redundantOpCount = 0;
+        // the order of the entries in the new journal has them
+        unrecordedReads.clear();
+    }
+
+    /**
+     * Returns the content of a journal that omits redundant information.
+     * Must be called with the cache lock held.
+     */
+    private byte[] buildJournal() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        if (binaryJournal) {
+            out.writeInt(BINARY_MAGIC);
+            out.writeInt(BINARY_VERSION_1);
+            out.writeInt(appVersion);
+            out.writeInt(valueCount);
+        } else {
+            String header = MAGIC + "\n" + VERSION_1 + "\n" + appVersion + "\n" + valueCount + "\n\n";
+            out.write(header.getBytes("UTF-8"));
+        }
 
         for (Entry entry : lruEntries.values()) {
-            if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
-            } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            }
+            writeJournalRecord(out, entry.currentEditor != null ? DIRTY : CLEAN, entry);
         }
+        out.close();
+        return bytes.toByteArray();
+    }
 
-        writer.close();
+    /**
+     * Replaces the journal file with {@code content}.
+     */
+    private void writeJournal(byte[] content) throws IOException {
+        OutputStream out = new FileOutputStream(journalFileTmp);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
         journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true));
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -448,40 +689,128 @@ public final class DiskLruCache implements Closeable {
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
      */
-    public synchronized Snapshot get(String key) throws IOException {
-        checkNotClosed();
+    public Snapshot get(String key) throws IOException {
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            return null;
-        }
+        for (int attempt = 0; ; attempt++) {
+            Entry entry;
+            long sequenceNumber;
+            synchronized (this) {
+                checkNotClosed();
+                entry = lruEntries.get(key);
+                if (entry == null || !entry.readable) {
+                    return null;
+                }
+                sequenceNumber = entry.sequenceNumber;
+                if (attempt == MAX_UNLOCKED_READ_ATTEMPTS) {
+                    // keeps losing the race with commits, open under the lock
+                    InputStream[] ins = openCleanFiles(entry);
+                    return ins != null ? newSnapshot(entry, ins) : null;
+                }
+            }
 
-        if (!entry.readable) {
-            return null;
+            /*
+             * Opening the files is the slow part, it is done without the lock.
+             * The streams belong to a single published snapshot if no edit was
+             * committed in the meantime, which the sequence number tells.
+             */
+            InputStream[] ins = openCleanFiles(entry);
+            synchronized (this) {
+                if (journal != null && lruEntries.get(key) == entry && entry.readable
+                        && entry.sequenceNumber == sequenceNumber) {
+                    return ins != null ? newSnapshot(entry, ins) : null;
+                }
+            }
+            closeAll(ins);
         }
+    }
 
-        /*
-         * Open all streams eagerly to guarantee that we see a single published
-         * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
-         */
+    /**
+     * Opens all streams eagerly to guarantee that we see a single published
+     * snapshot. If we opened streams lazily then the streams could come from
+     * different edits. Returns null if a file is missing.
+     */
+    private InputStream[] openCleanFiles(Entry entry) {
         InputStream[] ins = new InputStream[valueCount];
         try {
             for (int i = 0; i < valueCount; i++) {
                 ins[i] = new FileInputStream(entry.getCleanFile(i));
             }
         } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
+            // a file must have been deleted manually, or the entry removed
+            closeAll(ins);
             return null;
         }
+        return ins;
+    }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
+    private static void closeAll(InputStream[] ins) {
+        if (ins == null) {
+            return;
+        }
+        for (InputStream in : ins) {
+            /*IoUtils.*/closeQuietly(in);
+        }
+    }
+
+    /**
+     * Must be called with the cache lock held.
+     */
+    private Snapshot newSnapshot(Entry entry, InputStream[] ins) throws IOException {
+        try {
+            if (readRecordIntervalNanos > 0) {
+                unrecordedReads.put(entry.key, entry);
+                if (System.nanoTime() - lastReadRecordTime >= readRecordIntervalNanos) {
+                    recordReads();
+                }
+            } else {
+                redundantOpCount++;
+                journal.append(READ, entry);
+                if (journalRebuildRequired()) {
+                    executorService.submit(cleanupCallable);
+                }
+            }
+        } catch (IOException e) {
+            closeAll(ins);
+            throw e;
+        }
+
+        return new Snapshot(entry.key, entry.sequenceNumber, ins, entry.lengths.clone());
+    }
+
+    /**
+     * Appends the READ records of the entries read since the last batch, in
+     * the order they were last read. Must be called with the cache lock held.
+     */
+    private void recordReads() throws IOException {
+        lastReadRecordTime = System.nanoTime();
+        if (unrecordedReads.isEmpty()) {
+            return;
+        }
+        for (Entry entry : unrecordedReads.values()) {
+            redundantOpCount++;
+            journal.append(READ, entry);
+        }
+        unrecordedReads.clear();
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
         }
+    }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+    /**
+     * Journals reads in batches, at most once per {@code interval} instead of
+     * on each read, so that cache hits don't write to the disk. A zero
+     * interval, the default, journals each read right away.
+     */
+    public synchronized void setReadRecordInterval(long interval, TimeUnit unit)
+            throws IOException {
+        if (interval < 0) {
+            throw new IllegalArgumentException("interval < 0");
+        }
+        checkNotClosed();
+        readRecordIntervalNanos = unit.toNanos(interval);
+        if (readRecordIntervalNanos == 0) {
+            recordReads();
+        }
     }
 
     /**
@@ -492,27 +821,43 @@ public final class DiskLruCache implements Closeable {
         return edit(key, ANY_SEQUENCE_NUMBER);
     }
 
-    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
-        checkNotClosed();
+    private Editor edit(String key, long expectedSequenceNumber) throws IOException {
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
-                && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
-            return null; // snapshot is stale
-        }
-        if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
-        } else if (entry.currentEditor != null) {
-            return null; // another edit is in progress
-        }
+        Editor editor;
+        JournalWriter journal;
+        long ticket;
+        synchronized (this) {
+            checkNotClosed();
+            Entry entry = lruEntries.get(key);
+            if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
+                    && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
+                return null; // snapshot is stale
+            }
+            if (entry == null) {
+                entry = new Entry(key);
+                lruEntries.put(key, entry);
+            } else if (entry.currentEditor != null) {
+                return null; // another edit is in progress
+            }
 
-        Editor editor = new Editor(entry);
-        entry.currentEditor = editor;
+            editor = new Editor(entry);
+            entry.currentEditor = editor;
+            journal = this.journal;
+            ticket = journal.append(DIRTY, entry);
+        }
 
-        // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
+        // flush the journal before creating files to prevent file leaks, the
+        // entry is already locked for this edit so the cache lock isn't needed
+        try {
+            journal.awaitWritten(ticket);
+        } catch (IOException e) {
+            synchronized (this) {
+                if (editor.entry.currentEditor == editor && this.journal != null) {
+                    completeEdit(editor, false);
+                }
+            }
+            throw e;
+        }
         return editor;
     }
 
@@ -536,7 +881,7 @@ public final class DiskLruCache implements Closeable {
      * this cache. This may be greater than the max size if a background
      * deletion is pending.
      */
-    public synchronized long size() {
+    public long size() {
         return size;
     }
 
@@ -576,13 +921,14 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = null;
         if (entry.readable | success) {
             entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            journal.append(CLEAN, entry);
             if (success) {
                 entry.sequenceNumber = nextSequenceNumber++;
             }
         } else {
             lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+            unrecordedReads.remove(entry.key);
+            journal.append(REMOVE, entry);
         }
 
         if (size > maxSize || journalRebuildRequired()) {
@@ -624,8 +970,9 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
+        journal.append(REMOVE, entry);
         lruEntries.remove(key);
+        unrecordedReads.remove(key);
 
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
@@ -637,12 +984,12 @@ public final class DiskLruCache implements Closeable {
     /**
      * Returns true if this cache has been closed.
      */
-    public boolean isClosed() {
-        return journalWriter == null;
+    public synchronized boolean isClosed() {
+        return journal == null;
     }
 
     private void checkNotClosed() {
-        if (journalWriter == null) {
+        if (journal == null) {
             throw new IllegalStateException("cache is closed");
         }
     }
@@ -650,17 +997,22 @@ public final class DiskLruCache implements Closeable {
     /**
      * Force buffered operations to the filesystem.
      */
-    public synchronized void flush() throws IOException {
-        checkNotClosed();
-        trimToSize();
-        journalWriter.flush();
+    public void flush() throws IOException {
+        JournalWriter journal;
+        synchronized (this) {
+            checkNotClosed();
+            trimToSize();
+            recordReads();
+            journal = this.journal;
+        }
+        journal.flush();
     }
 
     /**
      * Closes this cache. Stored values will remain on the filesystem.
      */
     public synchronized void close() throws IOException {
-        if (journalWriter == null) {
+        if (journal == null) {
             return; // already closed
         }
         for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
@@ -669,8 +1021,12 @@ public final class DiskLruCache implements Closeable {
             }
         }
         trimToSize();
-        journalWriter.close();
-        journalWriter = null;
+        recordReads();
+        try {
+            journal.close();
+        } finally {
+            journal = null;
+        }
     }
 
     private void trimToSize() throws IOException {
@@ -708,11 +1064,13 @@ public final class DiskLruCache implements Closeable {
         private final String key;
         private final long sequenceNumber;
         private final InputStream[] ins;
+        private final long[] lengths;
 
-        private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
+        private Snapshot(String key, long sequenceNumber, InputStream[] ins, long[] lengths) {
             this.key = key;
             this.sequenceNumber = sequenceNumber;
             this.ins = ins;
+            this.lengths = lengths;
         }
 
         /**
@@ -731,6 +1089,43 @@ public final class DiskLruCache implements Closeable {
             return ins[index];
         }
 
+        /**
+         * Returns the channel of the value for {@code index}. It shares its
+         * position with the stream returned by {@link #getInputStream}.
+         */
+        public FileChannel getChannel(int index) {
+            return ((FileInputStream) ins[index]).getChannel();
+        }
+
+        /**
+         * Returns the file descriptor of the value for {@code index}, for
+         * native code that reads the file itself. It is closed with this
+         * snapshot.
+         */
+        public FileDescriptor getFileDescriptor(int index) throws IOException {
+            return ((FileInputStream) ins[index]).getFD();
+        }
+
+        /**
+         * Returns the value for {@code index}, read into an array of its exact
+         * length through its channel rather than in small buffered reads.
+         */
+        public byte[] getBytes(int index) throws IOException {
+            long length = lengths[index];
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("value too large: " + length);
+            }
+            byte[] bytes = new byte[(int) length];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            FileChannel channel = getChannel(index);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new EOFException("expected " + length + " bytes but read " + buffer.position());
+                }
+            }
+            return bytes;
+        }
+
         /**
          * Returns the string value for {@code index}.
          */
@@ -738,10 +1133,15 @@ public final class DiskLruCache implements Closeable {
             return inputStreamToString(getInputStream(index));
         }
 
+        /**
+         * Returns the byte length of the value for {@code index}.
+         */
+        public long getLength(int index) {
+            return lengths[index];
+        }
+
         @Override public void close() {
-            for (InputStream in : ins) {
-                /*IoUtils.*/closeQuietly(in);
-            }
+            closeAll(ins);
         }
     }
 
@@ -768,8 +1168,50 @@ public final class DiskLruCache implements Closeable {
                 if (!entry.readable) {
                     return null;
                 }
-                return new FileInputStream(entry.getCleanFile(index));
             }
+            // no other edit can replace the file while this one is current
+            return new FileInputStream(entry.getCleanFile(index));
+        }
+
+        /**
+         * Returns an unbuffered input stream to read what this edit has written
+         * so far at {@code index}, or null if nothing has been written yet.
+         */
+        public InputStream newDirtyInputStream(int index) throws IOException {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+            }
+            File dirty = entry.getDirtyFile(index);
+            if (!dirty.exists()) {
+                return null;
+            }
+            return new FileInputStream(dirty);
+        }
+
+        /**
+         * Moves the uncommitted value for {@code index} to the same index of
+         * {@code target}, an editor of another entry, by renaming its file.
+         * Returns false if this editor has no value for {@code index}. Streams
+         * writing the value must be closed first.
+         */
+        public boolean moveDirtyValueTo(int index, Editor target) throws IOException {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this || target.entry.currentEditor != target) {
+                    throw new IllegalStateException();
+                }
+            }
+            File dirty = entry.getDirtyFile(index);
+            if (!dirty.exists()) {
+                return false;
+            }
+            File targetDirty = target.entry.getDirtyFile(index);
+            deleteIfExists(targetDirty);
+            if (!dirty.renameTo(targetDirty)) {
+                throw new IOException("failed to rename " + dirty + " to " + targetDirty);
+            }
+            return true;
         }
 
         /**
@@ -793,8 +1235,8 @@ public final class DiskLruCache implements Closeable {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
-                return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
             }
+            return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
         }
 
         /**
@@ -870,6 +1312,179 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * Writes the journal on its own thread, so that cache operations only
+     * queue their records and never wait for the filesystem while holding the
+     * cache lock. Records are written in the order they were appended, and the
+     * records queued while a write is in progress are written and flushed
+     * together by the next one.
+     *
+     * A failed write may leave a partial record at the end of the journal, so
+     * after one no record is appended until the journal has been rebuilt,
+     * which is requested right away. Only the records of that period fail.
+     */
+    private final class JournalWriter implements Runnable {
+        private final Thread thread;
+        /** Only used by the journal thread once started. */
+        private OutputStream writer;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private final DataOutputStream pendingOut = new DataOutputStream(pending);
+        /** The content of the next journal, replacing the current one. */
+        private byte[] pendingRebuild;
+        private long appendedCount;
+        private long writtenCount;
+        private boolean closed;
+        /** Set from a failed write until the journal is rebuilt. */
+        private IOException error;
+        /** The tickets whose records were lost since the failed write. */
+        private long firstFailedTicket;
+        private long lastFailedTicket;
+
+        private JournalWriter(OutputStream writer) {
+            this.writer = writer;
+            this.thread = new Thread(this, "DiskLruCache journal");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Queues a record and returns the ticket to wait for it with.
+         */
+        synchronized long append(String state, Entry entry) throws IOException {
+            writeJournalRecord(pendingOut, state, entry);
+            notifyAll();
+            return ++appendedCount;
+        }
+
+        /**
+         * Replaces the journal with {@code content}, which supersedes the
+         * records queued so far.
+         */
+        synchronized void rebuild(byte[] content) {
+            pending.reset();
+            pendingRebuild = content;
+            appendedCount++;
+            notifyAll();
+        }
+
+        /**
+         * Waits until the record of {@code ticket} has been flushed.
+         */
+        synchronized void awaitWritten(long ticket) throws IOException {
+            while (writtenCount < ticket) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while writing the journal");
+                }
+            }
+            if (error != null && ticket >= firstFailedTicket && ticket <= lastFailedTicket) {
+                throw error;
+            }
+        }
+
+        void flush() throws IOException {
+            long ticket;
+            synchronized (this) {
+                ticket = appendedCount;
+            }
+            awaitWritten(ticket);
+        }
+
+        /**
+         * Writes the queued records and stops the journal thread.
+         */
+        void close() throws IOException {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                if (error != null) {
+                    throw error;
+                }
+            }
+        }
+
+        @Override public void run() {
+            while (true) {
+                byte[] records;
+                byte[] rebuild;
+                long first;
+                long target;
+                boolean broken;
+                synchronized (this) {
+                    while (pending.size() == 0 && pendingRebuild == null && !closed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                    if (pending.size() == 0 && pendingRebuild == null) {
+                        break; // closed
+                    }
+                    records = pending.toByteArray();
+                    pending.reset();
+                    rebuild = pendingRebuild;
+                    pendingRebuild = null;
+                    first = writtenCount + 1;
+                    target = appendedCount;
+                    broken = error != null;
+                }
+
+                IOException failure = null;
+                try {
+                    if (rebuild != null) {
+                        // flushing what the failed write left would fail again
+                        /*IoUtils.*/closeQuietly(writer);
+                        writer = null;
+                        writeJournal(rebuild);
+                        writer = new BufferedOutputStream(new FileOutputStream(journalFile, true));
+                        broken = false;
+                    }
+                    if (broken) {
+                        throw new IOException("journal waiting to be rebuilt");
+                    }
+                    writer.write(records);
+                    writer.flush();
+                } catch (IOException e) {
+                    failure = e;
+                }
+
+                synchronized (this) {
+                    if (failure == null) {
+                        error = null;
+                    } else {
+                        if (error == null) {
+                            firstFailedTicket = first;
+                        }
+                        error = failure;
+                        lastFailedTicket = target;
+                    }
+                    writtenCount = target;
+                    notifyAll();
+                }
+                if (failure != null && rebuild == null) {
+                    // a failed rebuild is retried with the next records only
+                    executorService.submit(journalRepairCallable);
+                }
+            }
+            /*IoUtils.*/closeQuietly(writer);
+        }
+    }
+
     private final class Entry {
         private final String key;
 
@@ -1,21 +1,38 @@
 package com.applidium.shutterbug.cache;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import android.app.ActivityManager;
 import android.content.Context;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
+import android.graphics.BitmapFactory;
 
 import com.applidium.shutterbug.cache.DiskLruCache.Editor;
 import com.applidium.shutterbug.cache.DiskLruCache.Snapshot;
 import com.applidium.shutterbug.utils.BitmapFactoryScale;
-import com.applidium.shutterbug.utils.BitmapFactoryScale.InputStreamGenerator;
+import com.applidium.shutterbug.utils.BitmapRegionFactory;
+import com.applidium.shutterbug.utils.BitmapTransformation;
 import com.applidium.shutterbug.utils.DownloadRequest;
+import com.applidium.shutterbug.utils.ShutterbugManager;
+import com.applidium.shutterbug.utils.ShutterbugScheduler;
+import com.applidium.shutterbug.utils.ShutterbugTask;
 
 public class ImageCache {
     public interface ImageCacheListener {
@@ -24,15 +41,52 @@ public class ImageCache {
         void onImageNotFound(ImageCache imageCache, String key, DownloadRequest downloadRequest);
     }
 
-    // 1 entry per key
-    private final static int         DISK_CACHE_VALUE_COUNT = 1;
+    public interface PreviewListener {
+        // Called on the downloading thread with a low resolution decode of the
+        // part of the image received so far
+        void onPreview(ImageCache imageCache, Bitmap preview);
+    }
+
+    // 2 entries per key: the image and its metadata
+    private final static int         DISK_CACHE_VALUE_COUNT      = 2;
+    private final static int         DISK_CACHE_IMAGE_INDEX      = 0;
+    private final static int         DISK_CACHE_METADATA_INDEX   = 1;
     // 100 MB of disk cache
-    private final static int         DISK_CACHE_MAX_SIZE    = 100 * 1024 * 1024;
+    private final static int         DISK_CACHE_MAX_SIZE         = 100 * 1024 * 1024;
+    // The binary journal is smaller and faster to read when the cache opens
+    private final static boolean     DISK_CACHE_BINARY_JOURNAL   = true;
+    // Cache hits are journaled in batches rather than each written to the disk
+    private final static long        DISK_CACHE_READ_INTERVAL    = 30 * 1000;
+    // Downloaded images up to 512 KB are decoded from memory, and so are the
+    // cached ones after being read at once, the larger ones from their file.
+    // The threshold is the one of the former download buffer, reused as is
+    // without being benchmarked.
+    private final static int         MEMORY_BUFFER_MAX_SIZE      = 512 * 1024;
+    private final static int         COPY_BUFFER_SIZE            = 8 * 1024;
+    // Interrupted downloads of images this large are kept to be resumed
+    private final static int         PARTIAL_DOWNLOAD_MIN_SIZE   = 64 * 1024;
+    private final static String      PARTIAL_DOWNLOAD_KEY_SUFFIX = "_partial";
+    // Previews are decoded a few times while downloading images this large,
+    // no larger than PREVIEW_MAX_DIMENSION on their longest side
+    private final static int         PREVIEW_MIN_SIZE            = 128 * 1024;
+    private final static int         PREVIEW_COUNT               = 3;
+    private final static int         PREVIEW_MAX_DIMENSION       = 256;
+    // Separates the disk cache key from the variant in memory cache keys
+    private final static char        MEMORY_KEY_SEPARATOR        = '_';
+    // Transformed bitmaps without alpha are stored as JPEG, the others as PNG
+    private final static int         TRANSFORMED_JPEG_QUALITY    = 90;
 
     private static ImageCache        sImageCache;
     private Context                  mContext;
     private LruCache<String, Bitmap> mMemoryCache;
-    private DiskLruCache             mDiskCache;
+    private BitmapPool               mBitmapPool;
+    // Memory cache keys of the variants held in memory for each disk cache key
+    private Map<String, Set<String>> mMemoryVariants             = new HashMap<String, Set<String>>();
+    // Replaced when the cache is cleared, which may happen on another thread,
+    // null while it is cleared or if it failed to open
+    private volatile DiskLruCache    mDiskCache;
+    // Released once the disk cache is open, or failed to open
+    private final CountDownLatch     mDiskCacheOpened            = new CountDownLatch(1);
 
     ImageCache(Context context) {
         mContext = context;
@@ -42,22 +96,44 @@ public class ImageCache {
 
         // Use 1/8th of the available memory for this memory cache.
         final int cacheSize = 1024 * 1024 * memClass / 8;
+        // Evicted bitmaps are only reused when the app enables the pool: one
+        // may still be shown by a view, and nothing tells when it lets go of it
+        mBitmapPool = new BitmapPool(0);
 
         mMemoryCache = new LruCache<String, Bitmap>(cacheSize) {
             @Override
             protected int sizeOf(String key, Bitmap bitmap) {
                 // The cache size will be measured in bytes rather than number
                 // of items.
-                return bitmap.getRowBytes() * bitmap.getHeight();
+                return BitmapPool.getBitmapSize(bitmap);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if (newValue == null) {
+                    removeMemoryVariant(key);
+                }
+                if (evicted) {
+                    mBitmapPool.put(oldValue);
+                }
             }
         };
 
-        openDiskCache();
+        // Reading the journal takes longer as the cache grows, keep it off the
+        // thread that happens to ask for the first image
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                openDiskCache();
+                mDiskCacheOpened.countDown();
+            }
+        }, "Shutterbug disk cache").start();
     }
 
-    public static ImageCache getSharedImageCache(Context context) {
+    public static synchronized ImageCache getSharedImageCache(Context context) {
         if (sImageCache == null) {
-            sImageCache = new ImageCache(context);
+            // Don't leak the activity that happens to ask first
+            sImageCache = new ImageCache(context.getApplicationContext());
         }
         return sImageCache;
     }
@@ -68,8 +144,18 @@ public class ImageCache {
             return;
         }
 
+        if (downloadRequest.isDiskOnly()) {
+            // Only the disk tier matters, there is nothing to decode
+            if (isDiskCacheAvailable()) {
+                submitDecodeTask(new DiskLookupTask(cacheKey, listener, downloadRequest), downloadRequest);
+                return;
+            }
+            listener.onImageNotFound(this, cacheKey, downloadRequest);
+            return;
+        }
+
         // First check the in-memory cache...
-        Bitmap cachedBitmap = mMemoryCache.get(cacheKey);
+        Bitmap cachedBitmap = mMemoryCache.get(getMemoryCacheKey(cacheKey, downloadRequest));
 
         if (cachedBitmap != null) {
             // ...notify listener immediately, no need to go async
@@ -77,98 +163,688 @@ public class ImageCache {
             return;
         }
 
-        if (mDiskCache != null) {
-            new BitmapDecoderTask(cacheKey, listener, downloadRequest).execute();
+        // Scaling down a larger variant is cheaper than decoding again
+        Bitmap largerBitmap = findLargerVariant(cacheKey, downloadRequest);
+        if (largerBitmap != null) {
+            submitDecodeTask(new BitmapDecoderTask(cacheKey, listener, downloadRequest, largerBitmap), downloadRequest);
+            return;
+        }
+
+        if (isDiskCacheAvailable()) {
+            submitDecodeTask(new BitmapDecoderTask(cacheKey, listener, downloadRequest), downloadRequest);
             return;
         }
         listener.onImageNotFound(this, cacheKey, downloadRequest);
     }
 
-    public Snapshot storeToDisk(InputStream inputStream, String cacheKey) {
+    // Lookups and decodes run at the priority of their request, so that low
+    // priority work does not delay the decodes of visible images
+    private static void submitDecodeTask(ShutterbugTask<?> task, DownloadRequest downloadRequest) {
+        task.setPriority(downloadRequest.getPriority());
+        ShutterbugScheduler.getSharedScheduler().submitDecodeTask(task);
+    }
+
+    // Copies the stream to the disk cache, also keeping the bytes in memory
+    // when the image is small enough so that decoding it does not have to read
+    // them back from the disk. The metadata holds what the response said about
+    // the image, its size is filled in here.
+    public CachedImage storeToDisk(InputStream inputStream, String cacheKey, int contentLength, CacheMetadata metadata) {
+        return storeToDisk(inputStream, cacheKey, contentLength, metadata, null);
+    }
+
+    // Same as above, also sending previews of large images to the listener
+    public CachedImage storeToDisk(InputStream inputStream, String cacheKey, int contentLength, CacheMetadata metadata, PreviewListener previewListener) {
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return null;
+        }
+        Editor editor = null;
+        OutputStream outputStream = null;
+        long written = 0;
         try {
-            Editor editor = mDiskCache.edit(cacheKey);
-            final OutputStream outputStream = editor.newOutputStream(0);
-            final int bufferSize = 1024;
-            byte[] bytes = new byte[bufferSize];
+            editor = diskCache.edit(cacheKey);
+            if (editor == null) {
+                // Another edit of this entry is in progress
+                return null;
+            }
+            ByteArrayOutputStream memoryBuffer = null;
+            if (contentLength <= MEMORY_BUFFER_MAX_SIZE) {
+                memoryBuffer = new ByteArrayOutputStream(contentLength > 0 ? contentLength : COPY_BUFFER_SIZE);
+            }
+            outputStream = editor.newOutputStream(DISK_CACHE_IMAGE_INDEX);
+            long previewInterval = 0;
+            if (previewListener != null && contentLength >= PREVIEW_MIN_SIZE) {
+                previewInterval = contentLength / (PREVIEW_COUNT + 1);
+            }
+            long nextPreview = previewInterval;
+            byte[] bytes = new byte[COPY_BUFFER_SIZE];
             for (;;) {
-                int count = inputStream.read(bytes, 0, bufferSize);
+                if (Thread.currentThread().isInterrupted()) {
+                    // The download was canceled
+                    throw new InterruptedIOException("Download canceled");
+                }
+                int count = inputStream.read(bytes, 0, COPY_BUFFER_SIZE);
                 if (count == -1)
                     break;
                 outputStream.write(bytes, 0, count);
+                written += count;
+                if (memoryBuffer != null) {
+                    if (memoryBuffer.size() + count > MEMORY_BUFFER_MAX_SIZE) {
+                        // Larger than announced, decode from the disk instead
+                        memoryBuffer = null;
+                    } else {
+                        memoryBuffer.write(bytes, 0, count);
+                    }
+                }
+                if (previewInterval > 0 && written >= nextPreview && written < contentLength) {
+                    nextPreview += previewInterval;
+                    Bitmap preview = decodePreview(editor);
+                    if (preview != null) {
+                        previewListener.onPreview(this, preview);
+                    }
+                }
             }
             outputStream.close();
+            if (written < metadata.getLength()) {
+                throw new IOException("Truncated download: " + written + " of " + metadata.getLength() + " bytes");
+            }
+            byte[] data = memoryBuffer != null ? memoryBuffer.toByteArray() : null;
+            if (data != null) {
+                readMetadata(new ByteArrayInputStream(data), metadata);
+            } else {
+                readMetadata(editor, metadata);
+            }
+            editor.set(DISK_CACHE_METADATA_INDEX, metadata.toString());
             editor.commit();
-            return mDiskCache.get(cacheKey);
+            removePartialDownload(cacheKey);
+            return new CachedImage(cacheKey, data, metadata);
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeQuietly(outputStream);
+            if (editor != null && isResumable(metadata, written)) {
+                storePartialDownload(diskCache, editor, cacheKey, metadata);
+            }
+            abortQuietly(editor);
+        } catch (IllegalStateException e) {
+            // The disk cache was closed by clear() during the download, this
+            // must not escape the network thread
+            e.printStackTrace();
+            closeQuietly(outputStream);
+            abortQuietly(editor);
+        }
+        return null;
+    }
+
+    // Decodes what has been written of the image so far, small enough to be
+    // quick. Only some formats, progressive JPEGs first, give a usable image.
+    private Bitmap decodePreview(Editor editor) {
+        InputStream inputStream = null;
+        try {
+            inputStream = editor.newDirtyInputStream(DISK_CACHE_IMAGE_INDEX);
+            BitmapFactory.Options options = BitmapFactoryScale.decodeBounds(inputStream);
+            closeQuietly(inputStream);
+            if (options == null) {
+                return null;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = 1;
+            while (Math.max(options.outWidth, options.outHeight) / options.inSampleSize > PREVIEW_MAX_DIMENSION) {
+                options.inSampleSize *= 2;
+            }
+            inputStream = editor.newDirtyInputStream(DISK_CACHE_IMAGE_INDEX);
+            if (inputStream == null) {
+                return null;
+            }
+            return BitmapFactory.decodeStream(inputStream, null, options);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(inputStream);
+        }
+        return null;
+    }
+
+    private static boolean isResumable(CacheMetadata metadata, long written) {
+        return written >= PARTIAL_DOWNLOAD_MIN_SIZE && written < metadata.getLength() && metadata.getRangeValidator() != null;
+    }
+
+    // Keeps what was written of an interrupted download under its own key, the
+    // next download of the image can ask for the rest only
+    private void storePartialDownload(DiskLruCache diskCache, Editor editor, String cacheKey, CacheMetadata metadata) {
+        Editor partialEditor = null;
+        try {
+            partialEditor = diskCache.edit(getPartialDownloadKey(cacheKey));
+            if (partialEditor == null) {
+                return;
+            }
+            // The file written so far is renamed, not copied
+            if (!editor.moveDirtyValueTo(DISK_CACHE_IMAGE_INDEX, partialEditor)) {
+                abortQuietly(partialEditor);
+                return;
+            }
+            partialEditor.set(DISK_CACHE_METADATA_INDEX, metadata.toString());
+            partialEditor.commit();
+        } catch (IOException e) {
+            e.printStackTrace();
+            abortQuietly(partialEditor);
+        } catch (IllegalStateException e) {
+            // Closed by clear() in the meantime
+            e.printStackTrace();
+            abortQuietly(partialEditor);
+        }
+    }
+
+    // Returns the interrupted download of the image, if any, the caller must
+    // close it
+    public PartialDownload openPartialDownload(String cacheKey) {
+        if (cacheKey == null) {
+            return null;
+        }
+        Snapshot snapshot = queryDiskCache(getPartialDownloadKey(cacheKey));
+        if (snapshot == null) {
+            return null;
+        }
+        return new PartialDownload(snapshot, readMetadata(snapshot), DISK_CACHE_IMAGE_INDEX);
+    }
+
+    public void removePartialDownload(String cacheKey) {
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return;
+        }
+        try {
+            diskCache.remove(getPartialDownloadKey(cacheKey));
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (IllegalStateException e) {
+            // Closed by clear(), which removed the entry anyway
+            e.printStackTrace();
+        }
+    }
+
+    private static String getPartialDownloadKey(String cacheKey) {
+        return cacheKey + PARTIAL_DOWNLOAD_KEY_SUFFIX;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void abortQuietly(Editor editor) {
+        if (editor == null) {
+            return;
+        }
+        try {
+            editor.abort();
         } catch (Exception e) {
             e.printStackTrace();
         }
+    }
+
+    // Reads the size of the image just written so that later decodes can skip
+    // the bounds pass
+    private void readMetadata(Editor editor, CacheMetadata metadata) throws IOException {
+        InputStream inputStream = editor.newDirtyInputStream(DISK_CACHE_IMAGE_INDEX);
+        if (inputStream == null) {
+            return;
+        }
+        try {
+            readMetadata(inputStream, metadata);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void readMetadata(InputStream inputStream, CacheMetadata metadata) {
+        BitmapFactory.Options options = BitmapFactoryScale.decodeBounds(inputStream);
+        if (options != null) {
+            metadata.setSize(options.outWidth, options.outHeight);
+            metadata.setMimeType(options.outMimeType);
+        }
+    }
+
+    // Returns the metadata of the entry, or null if the image is not on the
+    // disk
+    public CacheMetadata getMetadata(String cacheKey) {
+        if (cacheKey == null) {
+            return null;
+        }
+        Snapshot snapshot = queryDiskCache(cacheKey);
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            return readMetadata(snapshot);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static CacheMetadata readMetadata(Snapshot snapshot) {
+        try {
+            return CacheMetadata.fromString(snapshot.getString(DISK_CACHE_METADATA_INDEX));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new CacheMetadata();
+        }
+    }
+
+    // The server confirmed that the image on the disk is still current, keeps
+    // it with the new validators and freshness of the response
+    public CachedImage refreshMetadata(String cacheKey, CacheMetadata response) {
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return null;
+        }
+        Editor editor = null;
+        try {
+            CacheMetadata metadata = getMetadata(cacheKey);
+            if (metadata == null) {
+                // Evicted in the meantime
+                return null;
+            }
+            metadata.updateFreshness(response);
+            editor = diskCache.edit(cacheKey);
+            if (editor != null) {
+                // Only the metadata is rewritten, the image is left as is
+                editor.set(DISK_CACHE_METADATA_INDEX, metadata.toString());
+                editor.commit();
+            }
+            return new CachedImage(cacheKey, null, metadata);
+        } catch (IOException e) {
+            e.printStackTrace();
+            abortQuietly(editor);
+        } catch (IllegalStateException e) {
+            // Closed by clear() in the meantime
+            e.printStackTrace();
+            abortQuietly(editor);
+        }
         return null;
     }
 
+    // Runs the transformations of the request on a bitmap decoded for it, on
+    // the calling decode thread. The intermediate bitmaps go back to the pool,
+    // and so does the source if it is recyclable, that is if nothing else uses
+    // it. Given the metadata of the image, the result is also kept on the disk
+    // when the request asks for it.
+    public Bitmap transform(Bitmap bitmap, boolean recyclable, String cacheKey, CacheMetadata metadata, DownloadRequest downloadRequest) {
+        if (bitmap == null || !downloadRequest.hasTransformations()) {
+            return bitmap;
+        }
+        Bitmap result = bitmap;
+        try {
+            for (BitmapTransformation transformation : downloadRequest.getTransformations()) {
+                Bitmap transformed = transformation.transform(result);
+                if (transformed != result && (result != bitmap || recyclable)) {
+                    mBitmapPool.put(result);
+                }
+                if (transformed == null) {
+                    return null;
+                }
+                result = transformed;
+            }
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            downloadRequest.setTransientFailure();
+            return null;
+        }
+        if (metadata != null && downloadRequest.isTransformedDiskCached()) {
+            storeTransformedToDisk(cacheKey, result, metadata, downloadRequest);
+        }
+        return result;
+    }
+
+    // The transformed bitmap is stored with the metadata of the image it comes
+    // from, so that it is ignored once the image has changed
+    private void storeTransformedToDisk(String cacheKey, Bitmap bitmap, CacheMetadata metadata, DownloadRequest downloadRequest) {
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return;
+        }
+        Editor editor = null;
+        OutputStream outputStream = null;
+        try {
+            editor = diskCache.edit(getTransformedKey(cacheKey, downloadRequest));
+            if (editor == null) {
+                return;
+            }
+            outputStream = new BufferedOutputStream(editor.newOutputStream(DISK_CACHE_IMAGE_INDEX), COPY_BUFFER_SIZE);
+            boolean compressed;
+            if (bitmap.hasAlpha()) {
+                // Keep the transparency rounded corners and the like add
+                compressed = bitmap.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+            } else {
+                compressed = bitmap.compress(Bitmap.CompressFormat.JPEG, TRANSFORMED_JPEG_QUALITY, outputStream);
+            }
+            outputStream.close();
+            if (!compressed) {
+                abortQuietly(editor);
+                return;
+            }
+            editor.set(DISK_CACHE_METADATA_INDEX, metadata.toString());
+            editor.commit();
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeQuietly(outputStream);
+            abortQuietly(editor);
+        } catch (IllegalStateException e) {
+            // Closed by clear() in the meantime
+            e.printStackTrace();
+            closeQuietly(outputStream);
+            abortQuietly(editor);
+        }
+    }
+
+    // Returns the transformed bitmap kept on the disk for the request, or null
+    // if there is none for this version of the image
+    private Bitmap readTransformedFromDisk(String cacheKey, CacheMetadata metadata, DownloadRequest downloadRequest) {
+        Snapshot snapshot = queryDiskCache(getTransformedKey(cacheKey, downloadRequest));
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            if (!readMetadata(snapshot).isSameImage(metadata)) {
+                // Replaced the next time the transformations run
+                return null;
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            // Automatic RGB_565 would lose the alpha the transformations added
+            if (downloadRequest.getBitmapConfig() != null) {
+                options.inPreferredConfig = downloadRequest.getBitmapConfig();
+            }
+            return BitmapFactory.decodeStream(new BufferedInputStream(snapshot.getInputStream(DISK_CACHE_IMAGE_INDEX), COPY_BUFFER_SIZE), null, options);
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static String getTransformedKey(String cacheKey, DownloadRequest downloadRequest) {
+        // Disk cache keys are limited in length and characters
+        return ShutterbugManager.getCacheKey(cacheKey + MEMORY_KEY_SEPARATOR + downloadRequest.getVariantKey());
+    }
+
+    public Bitmap decodeCachedImage(CachedImage cachedImage, DownloadRequest downloadRequest) {
+        if (cachedImage.getData() != null && downloadRequest.hasRegion()) {
+            return BitmapRegionFactory.decodeRegionFromByteArray(cachedImage.getData(), downloadRequest, getDecodeOptions(cachedImage.getMetadata()));
+        }
+        if (cachedImage.getData() != null) {
+            return BitmapFactoryScale.decodeSampledBitmapFromByteArray(cachedImage.getData(), downloadRequest, getDecodeOptions(cachedImage.getMetadata()),
+                    mBitmapPool);
+        }
+        Snapshot snapshot = queryDiskCache(cachedImage.getCacheKey());
+        if (snapshot == null) {
+            // Evicted or unreadable, not a problem with the image itself
+            downloadRequest.setTransientFailure();
+            return null;
+        }
+        try {
+            return decodeSnapshot(snapshot, downloadRequest);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    // Options to decode the image with, holding its bounds when they are known
+    private static BitmapFactory.Options getDecodeOptions(CacheMetadata metadata) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if (metadata.hasSize()) {
+            options.outWidth = metadata.getWidth();
+            options.outHeight = metadata.getHeight();
+            options.outMimeType = metadata.getMimeType();
+        }
+        return options;
+    }
+
+    public Bitmap decodeSnapshot(Snapshot snapshot, DownloadRequest downloadRequest) {
+        return decodeSnapshot(snapshot, getDecodeOptions(readMetadata(snapshot)), downloadRequest);
+    }
+
+    private Bitmap decodeSnapshot(Snapshot snapshot, BitmapFactory.Options options, DownloadRequest downloadRequest) {
+        try {
+            if (snapshot.getLength(DISK_CACHE_IMAGE_INDEX) <= MEMORY_BUFFER_MAX_SIZE) {
+                byte[] data = snapshot.getBytes(DISK_CACHE_IMAGE_INDEX);
+                if (downloadRequest.hasRegion()) {
+                    return BitmapRegionFactory.decodeRegionFromByteArray(data, downloadRequest, options);
+                }
+                return BitmapFactoryScale.decodeSampledBitmapFromByteArray(data, downloadRequest, options, mBitmapPool);
+            }
+            FileDescriptor fd = snapshot.getFileDescriptor(DISK_CACHE_IMAGE_INDEX);
+            if (downloadRequest.hasRegion()) {
+                return BitmapRegionFactory.decodeRegionFromFileDescriptor(fd, downloadRequest, options);
+            }
+            return BitmapFactoryScale.decodeSampledBitmapFromFileDescriptor(fd, snapshot.getChannel(DISK_CACHE_IMAGE_INDEX), downloadRequest, options,
+                    mBitmapPool);
+        } catch (IOException e) {
+            e.printStackTrace();
+            downloadRequest.setTransientFailure();
+            return null;
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            downloadRequest.setTransientFailure();
+            return null;
+        }
+    }
+
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    // Every read of the disk cache goes through here, a cache closed by clear()
+    // in the meantime is a miss
     public Snapshot queryDiskCache(String cacheKey) {
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return null;
+        }
         try {
-            return mDiskCache.get(cacheKey);
+            return diskCache.get(cacheKey);
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
         }
         return null;
     }
 
-    public void storeToMemory(Bitmap bitmap, String cacheKey) {
-        mMemoryCache.put(cacheKey, bitmap);
+    // Returns the bytes of the image as they were downloaded, or null if it is
+    // not in the disk cache
+    public byte[] readFromDisk(String cacheKey) throws IOException {
+        Snapshot snapshot = queryDiskCache(cacheKey);
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            return snapshot.getBytes(DISK_CACHE_IMAGE_INDEX);
+        } finally {
+            snapshot.close();
+        }
     }
 
+    public void storeToMemory(Bitmap bitmap, String cacheKey, DownloadRequest downloadRequest) {
+        String memoryCacheKey = getMemoryCacheKey(cacheKey, downloadRequest);
+        if (downloadRequest.hasRegion() || downloadRequest.hasTransformations()) {
+            // Tiles and transformed bitmaps can't stand in for the image of
+            // another request
+            mMemoryCache.put(memoryCacheKey, bitmap);
+            return;
+        }
+        synchronized (mMemoryVariants) {
+            Set<String> variants = mMemoryVariants.get(cacheKey);
+            if (variants == null) {
+                variants = new HashSet<String>();
+                mMemoryVariants.put(cacheKey, variants);
+            }
+            variants.add(memoryCacheKey);
+        }
+        mMemoryCache.put(memoryCacheKey, bitmap);
+    }
+
+    // Forgets every bitmap decoded from the image, whatever its size, region
+    // or transformations, once the image has changed on the server
+    public void removeFromMemory(String cacheKey) {
+        String prefix = cacheKey + MEMORY_KEY_SEPARATOR;
+        // Tiles and transformed bitmaps are not tracked as variants
+        for (String memoryCacheKey : mMemoryCache.snapshot().keySet()) {
+            if (memoryCacheKey.startsWith(prefix)) {
+                mMemoryCache.remove(memoryCacheKey);
+            }
+        }
+    }
+
+    private static String getMemoryCacheKey(String cacheKey, DownloadRequest downloadRequest) {
+        return cacheKey + MEMORY_KEY_SEPARATOR + downloadRequest.getVariantKey();
+    }
+
+    private void removeMemoryVariant(String memoryCacheKey) {
+        String cacheKey = memoryCacheKey.substring(0, memoryCacheKey.indexOf(MEMORY_KEY_SEPARATOR));
+        synchronized (mMemoryVariants) {
+            Set<String> variants = mMemoryVariants.get(cacheKey);
+            if (variants != null) {
+                variants.remove(memoryCacheKey);
+                if (variants.isEmpty()) {
+                    mMemoryVariants.remove(cacheKey);
+                }
+            }
+        }
+    }
+
+    // Returns the smallest bitmap in memory for this url that is at least as
+    // large as the requested size, with a config the request accepts, or null
+    // if there is none
+    private Bitmap findLargerVariant(String cacheKey, DownloadRequest downloadRequest) {
+        if (!downloadRequest.hasDesiredSize()) {
+            // Only the full size variant can satisfy this request
+            return null;
+        }
+        String[] variants;
+        synchronized (mMemoryVariants) {
+            Set<String> variantSet = mMemoryVariants.get(cacheKey);
+            if (variantSet == null) {
+                return null;
+            }
+            variants = variantSet.toArray(new String[variantSet.size()]);
+        }
+        Bitmap bestBitmap = null;
+        for (String variant : variants) {
+            Bitmap bitmap = mMemoryCache.get(variant);
+            if (bitmap == null || bitmap.getWidth() < downloadRequest.getDesiredWidth() || bitmap.getHeight() < downloadRequest.getDesiredHeight()) {
+                continue;
+            }
+            if (!downloadRequest.acceptsBitmapConfig(bitmap.getConfig())) {
+                continue;
+            }
+            if (bestBitmap == null || bitmap.getWidth() * bitmap.getHeight() < bestBitmap.getWidth() * bestBitmap.getHeight()) {
+                bestBitmap = bitmap;
+            }
+        }
+        return bestBitmap;
+    }
+
+    // Blocks until the disk cache has been deleted and opened again, which
+    // first waits for it to be open if it is still reading its journal: call
+    // it from a background thread. The memory tiers are cleared right away.
     public void clear() {
+        mMemoryCache.evictAll();
+        mBitmapPool.evictAll();
+        DiskLruCache diskCache = getDiskCache();
+        // Lookups made from now on miss instead of reaching the closed cache
+        mDiskCache = null;
         try {
-            mDiskCache.delete();
-            openDiskCache();
+            if (diskCache != null) {
+                diskCache.delete();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
-        mMemoryCache.evictAll();
+        openDiskCache();
     }
 
-    private class BitmapDecoderTask extends AsyncTask<Void, Void, Bitmap> {
+    private class BitmapDecoderTask extends ShutterbugTask<Bitmap> {
         private String             mCacheKey;
         private ImageCacheListener mListener;
         private DownloadRequest    mDownloadRequest;
+        private Bitmap             mSourceBitmap;
 
         public BitmapDecoderTask(String cacheKey, ImageCacheListener listener, DownloadRequest downloadRequest) {
+            this(cacheKey, listener, downloadRequest, null);
+        }
+
+        public BitmapDecoderTask(String cacheKey, ImageCacheListener listener, DownloadRequest downloadRequest, Bitmap sourceBitmap) {
             mCacheKey = cacheKey;
             mListener = listener;
             mDownloadRequest = downloadRequest;
+            mSourceBitmap = sourceBitmap;
         }
 
         @Override
-        protected Bitmap doInBackground(Void... params) {
+        protected boolean postsResultToMainThread() {
+            return mDownloadRequest.hasMainThreadListener();
+        }
+
+        @Override
+        protected Bitmap doInBackground() {
+            if (mSourceBitmap != null) {
+                Bitmap bitmap = BitmapFactoryScale.scaleBitmap(mSourceBitmap, mDownloadRequest);
+                if (bitmap != null) {
+                    return transform(bitmap, bitmap != mSourceBitmap, mCacheKey, null, mDownloadRequest);
+                }
+                // Fall back to the disk cache
+            }
+            Snapshot snapshot = queryDiskCache(mCacheKey);
+            if (snapshot == null) {
+                mDownloadRequest.onDiskCacheMiss(null);
+                return null;
+            }
             try {
-                Snapshot snapshot = mDiskCache.get(mCacheKey);
-                if (snapshot != null) {
-                    return BitmapFactoryScale.decodeSampledBitmapFromStream(new InputStreamGenerator() {
-
-                        @Override
-                        public InputStream getStream() {
-                            try {
-                                return mDiskCache.get(mCacheKey).getInputStream(0);
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                                return null;
-                            }
-                        }
-                    }, mDownloadRequest);
-                } else {
+                CacheMetadata metadata = readMetadata(snapshot);
+                if (metadata.isStale(System.currentTimeMillis())) {
+                    // Let the downloader revalidate it
+                    mDownloadRequest.onDiskCacheMiss(metadata);
                     return null;
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-                return null;
+                if (mDownloadRequest.isTransformedDiskCached()) {
+                    Bitmap transformed = readTransformedFromDisk(mCacheKey, metadata, mDownloadRequest);
+                    if (transformed != null) {
+                        return transformed;
+                    }
+                }
+                // Canceling the request from now on stops the decode
+                BitmapFactory.Options options = getDecodeOptions(metadata);
+                if (!mDownloadRequest.startDecode(options)) {
+                    return null;
+                }
+                Bitmap bitmap = decodeSnapshot(snapshot, options, mDownloadRequest);
+                if (mDownloadRequest.isCancelled()) {
+                    return null;
+                }
+                return transform(bitmap, true, mCacheKey, metadata, mDownloadRequest);
+            } finally {
+                mDownloadRequest.finishDecode();
+                snapshot.close();
             }
         }
 
         @Override
         protected void onPostExecute(Bitmap result) {
+            if (mDownloadRequest.isCancelled()) {
+                return;
+            }
             if (result != null) {
-                storeToMemory(result, mCacheKey);
+                if (result != mSourceBitmap) {
+                    storeToMemory(result, mCacheKey, mDownloadRequest);
+                }
                 mListener.onImageFound(ImageCache.this, result, mCacheKey, mDownloadRequest);
             } else {
                 mListener.onImageNotFound(ImageCache.this, mCacheKey, mDownloadRequest);
@@ -177,6 +853,73 @@ public class ImageCache {
 
     }
 
+    // Checks that a fresh entry is on the disk, off the main thread since
+    // reading the cache may wait for its lock
+    private class DiskLookupTask extends ShutterbugTask<Boolean> {
+        private String             mCacheKey;
+        private ImageCacheListener mListener;
+        private DownloadRequest    mDownloadRequest;
+
+        public DiskLookupTask(String cacheKey, ImageCacheListener listener, DownloadRequest downloadRequest) {
+            mCacheKey = cacheKey;
+            mListener = listener;
+            mDownloadRequest = downloadRequest;
+        }
+
+        @Override
+        protected boolean postsResultToMainThread() {
+            return mDownloadRequest.hasMainThreadListener();
+        }
+
+        @Override
+        protected Boolean doInBackground() {
+            Snapshot snapshot = queryDiskCache(mCacheKey);
+            if (snapshot == null) {
+                mDownloadRequest.onDiskCacheMiss(null);
+                return false;
+            }
+            try {
+                CacheMetadata metadata = readMetadata(snapshot);
+                if (metadata.isStale(System.currentTimeMillis())) {
+                    mDownloadRequest.onDiskCacheMiss(metadata);
+                    return false;
+                }
+                return true;
+            } finally {
+                snapshot.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean found) {
+            if (found) {
+                // Disk only requests are not given a bitmap
+                mListener.onImageFound(ImageCache.this, null, mCacheKey, mDownloadRequest);
+            } else {
+                mListener.onImageNotFound(ImageCache.this, mCacheKey, mDownloadRequest);
+            }
+        }
+    }
+
+    // True until the disk cache is known to have failed to open, lookups made
+    // before it is open wait for it on their worker thread
+    private boolean isDiskCacheAvailable() {
+        return mDiskCacheOpened.getCount() > 0 || mDiskCache != null;
+    }
+
+    // Waits for the disk cache to be open, must not be called on the main
+    // thread, clear() excepted as it is documented to block. Null if it could
+    // not be opened.
+    private DiskLruCache getDiskCache() {
+        try {
+            mDiskCacheOpened.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        return mDiskCache;
+    }
+
     private void openDiskCache() {
         File directory;
         if (android.os.Environment.getExternalStorageState().equals(android.os.Environment.MEDIA_MOUNTED)) {
@@ -192,9 +935,13 @@ public class ImageCache {
             e.printStackTrace();
         }
         try {
-            mDiskCache = DiskLruCache.open(directory, versionCode, DISK_CACHE_VALUE_COUNT, DISK_CACHE_MAX_SIZE);
+            DiskLruCache diskCache = DiskLruCache.open(directory, versionCode, DISK_CACHE_VALUE_COUNT, DISK_CACHE_MAX_SIZE, DISK_CACHE_BINARY_JOURNAL);
+            diskCache.setReadRecordInterval(DISK_CACHE_READ_INTERVAL, TimeUnit.MILLISECONDS);
+            mDiskCache = diskCache;
         } catch (IOException e) {
             e.printStackTrace();
+            // Never keep a cache that clear() closed
+            mDiskCache = null;
         }
     }
 }
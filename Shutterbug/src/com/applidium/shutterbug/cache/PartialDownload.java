@@ -0,0 +1,39 @@
+package com.applidium.shutterbug.cache;
+
+import java.io.Closeable;
+import java.io.InputStream;
+
+import com.applidium.shutterbug.cache.DiskLruCache.Snapshot;
+
+// The beginning of an image whose download was interrupted, kept in the disk
+// cache so that the download can resume where it stopped
+public class PartialDownload implements Closeable {
+    private Snapshot      mSnapshot;
+    private CacheMetadata mMetadata;
+    private int           mImageIndex;
+
+    PartialDownload(Snapshot snapshot, CacheMetadata metadata, int imageIndex) {
+        mSnapshot = snapshot;
+        mMetadata = metadata;
+        mImageIndex = imageIndex;
+    }
+
+    // What the response that was interrupted said about the image
+    public CacheMetadata getMetadata() {
+        return mMetadata;
+    }
+
+    // Number of bytes already downloaded
+    public long getLength() {
+        return mSnapshot.getLength(mImageIndex);
+    }
+
+    public InputStream getInputStream() {
+        return mSnapshot.getInputStream(mImageIndex);
+    }
+
+    @Override
+    public void close() {
+        mSnapshot.close();
+    }
+}
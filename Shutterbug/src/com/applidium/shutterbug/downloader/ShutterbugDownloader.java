@@ -2,34 +2,65 @@ package com.applidium.shutterbug.downloader;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.methods.HttpGet;
-
-import android.os.AsyncTask;
+import android.graphics.Bitmap;
+import android.os.Process;
 
+import com.applidium.shutterbug.cache.CacheMetadata;
+import com.applidium.shutterbug.cache.CachedImage;
+import com.applidium.shutterbug.cache.ImageCache;
+import com.applidium.shutterbug.cache.PartialDownload;
 import com.applidium.shutterbug.utils.DownloadRequest;
+import com.applidium.shutterbug.utils.ShutterbugManager;
+import com.applidium.shutterbug.utils.ShutterbugScheduler;
+import com.applidium.shutterbug.utils.ShutterbugTask;
 
 public class ShutterbugDownloader {
     public interface ShutterbugDownloaderListener {
-        void onImageDownloadSuccess(ShutterbugDownloader downloader, InputStream inputStream, DownloadRequest downloadRequest);
+        void onImageDownloadSuccess(ShutterbugDownloader downloader, CachedImage cachedImage, DownloadRequest downloadRequest);
 
         void onImageDownloadFailure(ShutterbugDownloader downloader, DownloadRequest downloadRequest);
+
+        // Called on the downloading thread, only if previews are enabled
+        void onImageDownloadPreview(ShutterbugDownloader downloader, Bitmap preview);
     }
 
-    private String                             mUrl;
-    private ShutterbugDownloaderListener       mListener;
-    private byte[]                             mImageData;
-    private DownloadRequest                    mDownloadRequest;
-    private final static int                   TIMEOUT = 30000;
-    private AsyncTask<Void, Void, InputStream> mCurrentTask;
+    private String                                mUrl;
+    private ShutterbugDownloaderListener          mListener;
+    private DownloadRequest                       mDownloadRequest;
+    private ImageCache                            mImageCache;
+    private ShutterbugTransport                   mTransport;
+    private final static int                      HTTP_TOO_MANY_REQUESTS = 429;
+    private final static int                      KEEP_ALIVE_SECONDS     = 30;
+    // Aborting a response may close a socket, which is network I/O: it must
+    // not run on the thread that cancels, usually the main thread
+    private final static ExecutorService          sAbortExecutor         = createAbortExecutor();
+    private volatile ShutterbugTask<CachedImage>  mCurrentTask;
+    // Aborted on cancel so that a blocked read returns right away
+    private volatile ShutterbugTransport.Response mCurrentResponse;
+    private volatile boolean                      mPreviewEnabled;
+    // Whether retrying the download later is pointless
+    private volatile boolean                      mPermanentFailure;
 
-    public ShutterbugDownloader(String url, ShutterbugDownloaderListener listener, DownloadRequest downloadRequest) {
+    public ShutterbugDownloader(String url, ShutterbugDownloaderListener listener, DownloadRequest downloadRequest, ImageCache imageCache,
+            ShutterbugTransport transport) {
         mUrl = url;
         mListener = listener;
         mDownloadRequest = downloadRequest;
+        mImageCache = imageCache;
+        mTransport = transport;
     }
 
     public String getUrl() {
@@ -40,8 +71,13 @@ public class ShutterbugDownloader {
         return mListener;
     }
 
-    public byte[] getImageData() {
-        return mImageData;
+    // Decodes previews of large images while they download
+    public void setPreviewEnabled(boolean previewEnabled) {
+        mPreviewEnabled = previewEnabled;
+    }
+
+    public boolean isPermanentFailure() {
+        return mPermanentFailure;
     }
 
     public DownloadRequest getDownloadRequest() {
@@ -49,49 +85,282 @@ public class ShutterbugDownloader {
     }
 
     public void start() {
-        mCurrentTask = new AsyncTask<Void, Void, InputStream>() {
+        mCurrentTask = new ShutterbugTask<CachedImage>() {
 
             @Override
-            protected InputStream doInBackground(Void... params) {
-                HttpGet request = new HttpGet(mUrl);
-                request.setHeader("Content-Type", "application/x-www-form-urlencoded");
+            public String getHost() {
+                try {
+                    return new URL(mUrl).getHost();
+                } catch (MalformedURLException e) {
+                    return null;
+                }
+            }
 
+            @Override
+            protected boolean postsResultToMainThread() {
+                return mDownloadRequest.hasMainThreadListener();
+            }
+
+            @Override
+            protected CachedImage doInBackground() {
+                final String cacheKey = ShutterbugManager.getCacheKey(mUrl);
+                // Set when a stale copy of the image is on the disk, as found
+                // by the cache lookup that led to this download if any
+                CacheMetadata cachedMetadata;
+                if (mDownloadRequest.hasDiskCacheMissed()) {
+                    cachedMetadata = mDownloadRequest.getStaleMetadata();
+                } else {
+                    cachedMetadata = mImageCache.getMetadata(cacheKey);
+                }
+                Map<String, String> headers = new HashMap<String, String>();
+                if (cachedMetadata != null) {
+                    if (cachedMetadata.getEtag() != null) {
+                        headers.put("If-None-Match", cachedMetadata.getEtag());
+                    }
+                    if (cachedMetadata.getLastModified() != null) {
+                        headers.put("If-Modified-Since", cachedMetadata.getLastModified());
+                    }
+                }
+                // Set when only the beginning of the image is on the disk
+                PartialDownload partialDownload = null;
+                if (cachedMetadata == null) {
+                    partialDownload = mImageCache.openPartialDownload(cacheKey);
+                }
+                if (partialDownload != null) {
+                    // Ask for the rest, or for the whole image if it changed
+                    headers.put("Range", "bytes=" + partialDownload.getLength() + "-");
+                    headers.put("If-Range", partialDownload.getMetadata().getRangeValidator());
+                }
+                ShutterbugTransport.Response response = null;
                 try {
-                    URL imageUrl = new URL(mUrl);
-                    HttpURLConnection connection = (HttpURLConnection) imageUrl.openConnection();
-                    connection.setConnectTimeout(TIMEOUT);
-                    connection.setReadTimeout(TIMEOUT);
-                    connection.setInstanceFollowRedirects(true);
-                    InputStream inputStream = connection.getInputStream();
-                    return inputStream;
-                } catch (ClientProtocolException e) {
-                    e.printStackTrace();
+                    response = mTransport.open(mUrl, headers);
+                    mCurrentResponse = response;
+                    if (partialDownload != null && isRangeRefused(response.getStatusCode()) && !isCancelled()) {
+                        // The same range would be refused every time, drop the
+                        // partial entry and ask for the whole image once
+                        partialDownload.close();
+                        partialDownload = null;
+                        mImageCache.removePartialDownload(cacheKey);
+                        headers.remove("Range");
+                        headers.remove("If-Range");
+                        mCurrentResponse = null;
+                        response.close();
+                        response = null;
+                        response = mTransport.open(mUrl, headers);
+                        mCurrentResponse = response;
+                    }
+                    if (isCancelled()) {
+                        return null;
+                    }
+                    int statusCode = response.getStatusCode();
+                    if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED && cachedMetadata != null) {
+                        return mImageCache.refreshMetadata(cacheKey, readCacheHeaders(response));
+                    }
+                    if (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                        // Client errors will fail the same way next time,
+                        // except timeouts and rate limiting
+                        mPermanentFailure = statusCode < HttpURLConnection.HTTP_INTERNAL_ERROR && statusCode != HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                                && statusCode != HTTP_TOO_MANY_REQUESTS;
+                        return mPermanentFailure ? null : getStaleImage(cacheKey, cachedMetadata);
+                    }
+                    if (statusCode == HttpURLConnection.HTTP_PARTIAL && partialDownload == null) {
+                        // Only part of an image we asked for in full, don't
+                        // store it as the whole image
+                        return getStaleImage(cacheKey, cachedMetadata);
+                    }
+                    CacheMetadata metadata = readCacheHeaders(response);
+                    if (statusCode == HttpURLConnection.HTTP_PARTIAL) {
+                        if (getContentRangeStart(response) != partialDownload.getLength()) {
+                            // Not the range we asked for, start over next time
+                            mImageCache.removePartialDownload(cacheKey);
+                            return null;
+                        }
+                        metadata.setLength(getContentRangeLength(response));
+                        InputStream body = new SequenceInputStream(partialDownload.getInputStream(), response.getBody());
+                        return mImageCache.storeToDisk(body, cacheKey, (int) metadata.getLength(), metadata, getPreviewListener());
+                    }
+                    metadata.setLength(Math.max(response.getContentLength(), 0));
+                    // Stream the body straight to the cache from this thread
+                    CachedImage cachedImage = mImageCache.storeToDisk(response.getBody(), cacheKey, response.getContentLength(), metadata,
+                            getPreviewListener());
+                    if (cachedImage != null && cachedMetadata != null) {
+                        // The revalidation got a new image, the bitmaps decoded
+                        // from the old one must not be shown anymore
+                        mImageCache.removeFromMemory(cacheKey);
+                    }
+                    return cachedImage;
                 } catch (IOException e) {
                     e.printStackTrace();
+                    return getStaleImage(cacheKey, cachedMetadata);
+                } finally {
+                    if (partialDownload != null) {
+                        partialDownload.close();
+                    }
+                    mCurrentResponse = null;
+                    if (response != null) {
+                        if (isCancelled()) {
+                            // Don't wait for the rest of a body nobody wants
+                            response.abort();
+                        } else {
+                            response.close();
+                        }
+                    }
                 }
-                return null;
             }
 
             @Override
-            protected void onPostExecute(InputStream inputStream) {
+            protected void onPostExecute(CachedImage cachedImage) {
                 if (isCancelled()) {
-                    inputStream = null;
+                    cachedImage = null;
                 }
 
-                if (inputStream != null) {
-                    mListener.onImageDownloadSuccess(ShutterbugDownloader.this, inputStream, mDownloadRequest);
+                if (cachedImage != null) {
+                    mListener.onImageDownloadSuccess(ShutterbugDownloader.this, cachedImage, mDownloadRequest);
                 } else {
                     mListener.onImageDownloadFailure(ShutterbugDownloader.this, mDownloadRequest);
                 }
             }
 
-        }.execute();
+        };
+        mCurrentTask.setPriority(mDownloadRequest.getPriority());
+        ShutterbugScheduler.getSharedScheduler().submitNetworkTask(mCurrentTask);
+    }
 
+    private static ExecutorService createAbortExecutor() {
+        return new ThreadPoolExecutor(0, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "Shutterbug abort");
+            }
+        });
     }
 
+    // Called when a more urgent request starts waiting for this download, so
+    // that it does not stay behind the requests of its initial priority
+    public void raisePriority(int priority) {
+        ShutterbugTask<CachedImage> task = mCurrentTask;
+        if (task != null && task.getPriority() < priority) {
+            task.setPriority(priority);
+        }
+    }
+
+    private ImageCache.PreviewListener getPreviewListener() {
+        if (!mPreviewEnabled) {
+            return null;
+        }
+        return new ImageCache.PreviewListener() {
+            @Override
+            public void onPreview(ImageCache imageCache, Bitmap preview) {
+                mListener.onImageDownloadPreview(ShutterbugDownloader.this, preview);
+            }
+        };
+    }
+
+    // 416 Range Not Satisfiable in particular, any client error answering a
+    // range request may come from the range itself
+    private static boolean isRangeRefused(int statusCode) {
+        return statusCode >= HttpURLConnection.HTTP_BAD_REQUEST && statusCode < HttpURLConnection.HTTP_INTERNAL_ERROR;
+    }
+
+    // A stale image is better than none when the server can't be reached
+    private static CachedImage getStaleImage(String cacheKey, CacheMetadata cachedMetadata) {
+        if (cachedMetadata == null) {
+            return null;
+        }
+        return new CachedImage(cacheKey, null, cachedMetadata);
+    }
+
+    // Content-Range is "bytes first-last/length", -1 if it is missing or
+    // malformed
+    private static long getContentRangeStart(ShutterbugTransport.Response response) {
+        String contentRange = response.getHeader("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        if (dash == -1) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long getContentRangeLength(ShutterbugTransport.Response response) {
+        String contentRange = response.getHeader("Content-Range");
+        int slash = contentRange != null ? contentRange.indexOf('/') : -1;
+        if (slash == -1) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            // The length is "*" when unknown
+            return 0;
+        }
+    }
+
+    // Reads the validators and the freshness lifetime of the response,
+    // Cache-Control max-age taking precedence over Expires
+    private static CacheMetadata readCacheHeaders(ShutterbugTransport.Response response) {
+        CacheMetadata metadata = new CacheMetadata();
+        metadata.setEtag(response.getHeader("ETag"));
+        metadata.setLastModified(response.getHeader("Last-Modified"));
+        long now = System.currentTimeMillis();
+        long expires = 0;
+        if (response.getHeader("Expires") != null) {
+            // Invalid dates, "0" in particular, mean already expired
+            expires = response.getHeaderDate("Expires", now);
+            if (expires <= 0) {
+                expires = now;
+            }
+        }
+        String cacheControl = response.getHeader("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    // Revalidate on every use
+                    expires = now;
+                    break;
+                } else if (directive.startsWith("max-age=")) {
+                    try {
+                        expires = now + Long.parseLong(directive.substring("max-age=".length())) * 1000;
+                    } catch (NumberFormatException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+        metadata.setExpires(expires);
+        return metadata;
+    }
+
+    // Stops the download wherever it is: still queued, waiting for the server
+    // or writing the body to the disk cache, in which case the partial entry is
+    // discarded. Returns right away, a read blocked on the network is aborted
+    // from a background thread.
     public void cancel() {
-        if (mCurrentTask != null) {
-            mCurrentTask.cancel(true);
+        ShutterbugTask<CachedImage> task = mCurrentTask;
+        if (task != null) {
+            task.cancel(true);
+        }
+        final ShutterbugTransport.Response response = mCurrentResponse;
+        if (response != null) {
+            sAbortExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    response.abort();
+                }
+            });
         }
     }
 }
@@ -0,0 +1,37 @@
+package com.applidium.shutterbug.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+// Performs the HTTP requests of the downloaders. Implementations must be safe
+// to use from several threads at once.
+public interface ShutterbugTransport {
+    // Sends a GET request for the url and returns once the response headers
+    // have been received
+    Response open(String url, Map<String, String> headers) throws IOException;
+
+    public interface Response {
+        int getStatusCode() throws IOException;
+
+        // Null if the header is missing
+        String getHeader(String name);
+
+        // The date value of the header in milliseconds since the epoch, or
+        // defaultValue if it is missing or malformed
+        long getHeaderDate(String name, long defaultValue);
+
+        // -1 if unknown
+        int getContentLength();
+
+        // The body as it was sent, without any content decoding
+        InputStream getBody() throws IOException;
+
+        // Releases the response, leaving the connection ready to be reused
+        void close();
+
+        // Releases the response without reading the rest of the body, the
+        // connection is not reused
+        void abort();
+    }
+}
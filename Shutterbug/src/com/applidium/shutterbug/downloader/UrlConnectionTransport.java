@@ -0,0 +1,279 @@
+package com.applidium.shutterbug.downloader;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+import android.os.Build;
+
+// The default transport, on top of HttpURLConnection. Connections are kept
+// alive and pooled per host by HttpURLConnection itself, as long as each
+// response is either read to the end or drained before it is closed. The pool
+// is shared by the whole process and left as the app configured it, see
+// configureConnectionPool.
+public class UrlConnectionTransport implements ShutterbugTransport {
+    private final static int TIMEOUT           = 30000;
+    // Draining more than this costs more than opening a new connection
+    private final static int MAX_DRAIN_SIZE    = 64 * 1024;
+    private final static int DRAIN_BUFFER_SIZE = 4 * 1024;
+
+    private int              mRequestCount;
+    private int              mOpenCount;
+    private int              mReleaseCount;
+    private int              mDisconnectCount;
+    private int              mAbortCount;
+    // Announced body bytes that aborted responses did not download
+    private long             mSavedByteCount;
+
+    // Sets the number of idle connections HttpURLConnection keeps per host,
+    // and turns keep-alive off before Froyo. These are system properties, they
+    // apply to every HttpURLConnection of the process: only call this if the
+    // app doesn't configure them itself.
+    public static void configureConnectionPool(int maxIdleConnections) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
+            // Reusing a connection could break the next request before Froyo
+            System.setProperty("http.keepAlive", "false");
+        } else {
+            System.setProperty("http.keepAlive", "true");
+            System.setProperty("http.maxConnections", Integer.toString(maxIdleConnections));
+        }
+    }
+
+    @Override
+    public Response open(String url, Map<String, String> headers) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        connection.setInstanceFollowRedirects(true);
+        // Images are already compressed, and a gzipped body would hide the
+        // content length we size the memory buffer with
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        synchronized (this) {
+            mRequestCount++;
+        }
+        try {
+            connection.getResponseCode();
+        } catch (IOException e) {
+            connection.disconnect();
+            synchronized (this) {
+                mDisconnectCount++;
+            }
+            throw e;
+        }
+        synchronized (this) {
+            mOpenCount++;
+        }
+        return new UrlConnectionResponse(connection);
+    }
+
+    private synchronized void onResponseAborted(long savedBytes) {
+        mAbortCount++;
+        mSavedByteCount += savedBytes;
+    }
+
+    private synchronized void onResponseReleased(boolean disconnected) {
+        mOpenCount--;
+        if (disconnected) {
+            mDisconnectCount++;
+        } else {
+            mReleaseCount++;
+        }
+    }
+
+    // Requests sent
+    public synchronized final int requestCount() {
+        return mRequestCount;
+    }
+
+    // Responses not closed yet
+    public synchronized final int openCount() {
+        return mOpenCount;
+    }
+
+    // Responses whose connection went back to the pool
+    public synchronized final int releaseCount() {
+        return mReleaseCount;
+    }
+
+    // Connections closed instead of being reused
+    public synchronized final int disconnectCount() {
+        return mDisconnectCount;
+    }
+
+    // Responses dropped before the end of their body, on cancel
+    public synchronized final int abortCount() {
+        return mAbortCount;
+    }
+
+    public synchronized final long savedByteCount() {
+        return mSavedByteCount;
+    }
+
+    @Override
+    public synchronized final String toString() {
+        int released = mReleaseCount + mDisconnectCount;
+        int reusablePercent = released != 0 ? (100 * mReleaseCount / released) : 0;
+        return String.format("UrlConnectionTransport[requests=%d,open=%d,released=%d,disconnected=%d,reusable=%d%%,aborted=%d,savedBytes=%d]",
+                mRequestCount, mOpenCount, mReleaseCount, mDisconnectCount, reusablePercent, mAbortCount, mSavedByteCount);
+    }
+
+    private class UrlConnectionResponse implements Response {
+        private HttpURLConnection    mConnection;
+        private CountingInputStream mBody;
+        private boolean              mReleased;
+
+        UrlConnectionResponse(HttpURLConnection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public int getStatusCode() throws IOException {
+            return mConnection.getResponseCode();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public long getHeaderDate(String name, long defaultValue) {
+            return mConnection.getHeaderFieldDate(name, defaultValue);
+        }
+
+        @Override
+        public int getContentLength() {
+            return mConnection.getContentLength();
+        }
+
+        @Override
+        public synchronized InputStream getBody() throws IOException {
+            if (mBody == null) {
+                InputStream stream = getResponseStream();
+                if (stream == null) {
+                    return null;
+                }
+                mBody = new CountingInputStream(stream);
+            }
+            return mBody;
+        }
+
+        // Error responses have their body on another stream, which must be
+        // drained too for the connection to be reused
+        private InputStream getResponseStream() throws IOException {
+            if (mConnection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                return mConnection.getErrorStream();
+            }
+            return mConnection.getInputStream();
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (mReleased) {
+                    return;
+                }
+            }
+            boolean reusable = false;
+            try {
+                InputStream body = getBody();
+                reusable = body == null || drain(body);
+                if (body != null) {
+                    body.close();
+                }
+            } catch (IOException e) {
+                // The connection is broken, don't reuse it
+            }
+            release(!reusable);
+        }
+
+        @Override
+        public void abort() {
+            long readCount;
+            synchronized (this) {
+                if (mReleased) {
+                    return;
+                }
+                readCount = mBody != null ? mBody.getCount() : 0;
+            }
+            int contentLength = mConnection.getContentLength();
+            if (release(true)) {
+                onResponseAborted(contentLength > readCount ? contentLength - readCount : 0);
+            }
+        }
+
+        // Returns false if the response had already been released
+        private boolean release(boolean disconnect) {
+            synchronized (this) {
+                if (mReleased) {
+                    return false;
+                }
+                mReleased = true;
+            }
+            if (disconnect) {
+                mConnection.disconnect();
+            }
+            onResponseReleased(disconnect);
+            return true;
+        }
+
+        // Reads what is left of the body, returns false if there was too much
+        private boolean drain(InputStream body) throws IOException {
+            byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+            int drained = 0;
+            while (drained <= MAX_DRAIN_SIZE) {
+                int count = body.read(buffer);
+                if (count == -1) {
+                    return true;
+                }
+                drained += count;
+            }
+            return false;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private volatile long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result != -1) {
+                mCount++;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int result = super.read(buffer, offset, count);
+            if (result > 0) {
+                mCount += result;
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long result = super.skip(count);
+            mCount += result;
+            return result;
+        }
+    }
+}
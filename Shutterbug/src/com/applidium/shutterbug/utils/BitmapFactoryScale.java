@@ -1,29 +1,253 @@
 package com.applidium.shutterbug.utils;
 
+import java.io.BufferedInputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import com.applidium.shutterbug.cache.BitmapPool;
 
 public class BitmapFactoryScale {
-    public interface InputStreamGenerator {
-        public InputStream getStream();
+    private final static int    BUFFER_SIZE    = 16 * 1024;
+    private final static String MIME_TYPE_JPEG = "image/jpeg";
+    private final static String MIME_TYPE_PNG  = "image/png";
+
+    // Decodes an image already in memory, skipping the bounds pass when the
+    // bounds of the image are already known. The options, if any, are used for
+    // the decode so that the caller can cancel it with requestCancelDecode,
+    // their out fields hold the bounds when known.
+    public static Bitmap decodeSampledBitmapFromByteArray(byte[] data, DownloadRequest request, BitmapFactory.Options options, BitmapPool pool) {
+        if (data == null || request == null) {
+            return null;
+        }
+        try {
+            if (options == null) {
+                options = new BitmapFactory.Options();
+            }
+            if (!hasBounds(options)) {
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                options.inJustDecodeBounds = false;
+            }
+
+            options.inSampleSize = request.getSampleSize(options);
+            options.inPreferredConfig = request.getBitmapConfig(options);
+            prepareExactSize(options, request);
+            Bitmap reusable = prepareReuse(options, pool);
+            if (reusable != null) {
+                Bitmap bitmap = null;
+                try {
+                    bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                } catch (IllegalArgumentException e) {
+                    // The pooled bitmap could not be reused after all
+                }
+                if (bitmap != null || options.mCancel) {
+                    return resetDensity(bitmap, options);
+                }
+                options.inBitmap = null;
+            }
+            return resetDensity(BitmapFactory.decodeByteArray(data, 0, data.length, options), options);
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            request.setTransientFailure();
+            return null;
+        }
     }
 
-    public static Bitmap decodeSampledBitmapFromStream(InputStreamGenerator generator, DownloadRequest request) {
-        if (generator == null || request == null) {
+    // Same as above for an image in a file, which the decoder reads itself
+    // without copying it to the Java heap. The channel is the one of the file
+    // descriptor, it rewinds the file for each decoding pass.
+    public static Bitmap decodeSampledBitmapFromFileDescriptor(FileDescriptor fd, FileChannel channel, DownloadRequest request, BitmapFactory.Options options,
+            BitmapPool pool) {
+        if (fd == null || channel == null || request == null) {
             return null;
         }
         try {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(generator.getStream(), null, options);
+            if (options == null) {
+                options = new BitmapFactory.Options();
+            }
+            if (!hasBounds(options)) {
+                options.inJustDecodeBounds = true;
+                channel.position(0);
+                BitmapFactory.decodeFileDescriptor(fd, null, options);
+                options.inJustDecodeBounds = false;
+            }
 
             options.inSampleSize = request.getSampleSize(options);
-            options.inJustDecodeBounds = false;
-            return BitmapFactory.decodeStream(generator.getStream(), null, options);
+            options.inPreferredConfig = request.getBitmapConfig(options);
+            prepareExactSize(options, request);
+            Bitmap reusable = prepareReuse(options, pool);
+            if (reusable != null) {
+                Bitmap bitmap = null;
+                try {
+                    channel.position(0);
+                    bitmap = BitmapFactory.decodeFileDescriptor(fd, null, options);
+                } catch (IllegalArgumentException e) {
+                    // The pooled bitmap could not be reused after all
+                }
+                if (bitmap != null || options.mCancel) {
+                    return resetDensity(bitmap, options);
+                }
+                options.inBitmap = null;
+            }
+            channel.position(0);
+            return resetDensity(BitmapFactory.decodeFileDescriptor(fd, null, options), options);
+        } catch (IOException e) {
+            e.printStackTrace();
+            request.setTransientFailure();
+            return null;
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            request.setTransientFailure();
+            return null;
+        }
+    }
+
+    private static boolean hasBounds(BitmapFactory.Options options) {
+        return options.outWidth > 0 && options.outHeight > 0;
+    }
+
+    // Lets the decoder scale the sampled image down to the exact size of the
+    // request, through the density scaling of BitmapFactory, instead of
+    // allocating the sampled bitmap and scaling it afterwards
+    private static void prepareExactSize(BitmapFactory.Options options, DownloadRequest request) {
+        if (!request.isExactSize() || !request.hasDesiredSize() || !hasBounds(options)) {
+            return;
+        }
+        int width = getSampledSize(options.outWidth, options.inSampleSize);
+        int height = getSampledSize(options.outHeight, options.inSampleSize);
+        int density;
+        int targetDensity;
+        if (scalesByWidth(request, width, height)) {
+            density = width;
+            targetDensity = request.getDesiredWidth();
+        } else {
+            density = height;
+            targetDensity = request.getDesiredHeight();
+        }
+        if (targetDensity < density) {
+            options.inScaled = true;
+            options.inDensity = density;
+            options.inTargetDensity = targetDensity;
+        }
+    }
+
+    // Whether the width reaches its desired size first when scaling the image
+    // down, the height then stays larger than its own
+    private static boolean scalesByWidth(DownloadRequest request, int width, int height) {
+        return (long) request.getDesiredWidth() * height >= (long) request.getDesiredHeight() * width;
+    }
+
+    private static boolean isScaled(BitmapFactory.Options options) {
+        return options.inScaled && options.inDensity > 0 && options.inTargetDensity > 0 && options.inDensity != options.inTargetDensity;
+    }
+
+    // The decoder gives scaled bitmaps the target density, which would make
+    // them drawn at another size than the unscaled ones
+    private static Bitmap resetDensity(Bitmap bitmap, BitmapFactory.Options options) {
+        if (bitmap != null && isScaled(options)) {
+            bitmap.setDensity(Bitmap.DENSITY_NONE);
+        }
+        return bitmap;
+    }
+
+    // Rounded up, the decoded size depends on the codec
+    private static int getSampledSize(int size, int sampleSize) {
+        return (size + sampleSize - 1) / sampleSize;
+    }
+
+    private static int getDecodedSize(int size, BitmapFactory.Options options) {
+        int sampledSize = getSampledSize(size, options.inSampleSize);
+        if (!isScaled(options)) {
+            return sampledSize;
+        }
+        return (int) (sampledSize * (float) options.inTargetDensity / options.inDensity + 0.5f);
+    }
+
+    // Returns the pooled bitmap the options now decode into, or null. The
+    // options fields used for reuse don't exist below Honeycomb, they must only
+    // be touched when this returns a bitmap.
+    private static Bitmap prepareReuse(BitmapFactory.Options options, BitmapPool pool) {
+        if (pool == null || !BitmapPool.isSupported() || pool.maxSize() <= 0) {
+            return null;
+        }
+        // Lets the result go back to the pool once evicted
+        options.inMutable = true;
+        Bitmap reusable = getReusableBitmap(options, pool);
+        options.inBitmap = reusable;
+        return reusable;
+    }
+
+    private static Bitmap getReusableBitmap(BitmapFactory.Options options, BitmapPool pool) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            // Before KitKat only unsampled and unscaled JPEG and PNG images
+            // can be decoded into an existing bitmap
+            if (options.inSampleSize != 1 || isScaled(options) || !(MIME_TYPE_JPEG.equals(options.outMimeType) || MIME_TYPE_PNG.equals(options.outMimeType))) {
+                return null;
+            }
+        }
+        int width = getDecodedSize(options.outWidth, options);
+        int height = getDecodedSize(options.outHeight, options);
+        return pool.get(width, height, options.inPreferredConfig);
+    }
+
+    // Returns the options filled with the size and mime type of the image, or
+    // null if the stream could not be decoded, the stream is not closed
+    public static BitmapFactory.Options decodeBounds(InputStream inputStream) {
+        if (inputStream == null) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(new BufferedInputStream(inputStream, BUFFER_SIZE), null, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        return options;
+    }
+
+    public static int getSampleSize(Bitmap source, DownloadRequest request) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.outWidth = source.getWidth();
+        options.outHeight = source.getHeight();
+        return request.getSampleSize(options);
+    }
+
+    // Scales a bitmap already in memory down the same way decoding its source
+    // for this request would have, the source is returned as is when it needs
+    // no scaling
+    public static Bitmap scaleBitmap(Bitmap source, DownloadRequest request) {
+        if (source == null || request == null) {
+            return null;
+        }
+        int sampleSize = getSampleSize(source, request);
+        int width = source.getWidth() / sampleSize;
+        int height = source.getHeight() / sampleSize;
+        if (request.isExactSize() && request.hasDesiredSize()) {
+            float scale;
+            if (scalesByWidth(request, width, height)) {
+                scale = (float) request.getDesiredWidth() / width;
+            } else {
+                scale = (float) request.getDesiredHeight() / height;
+            }
+            if (scale < 1) {
+                width = Math.max((int) (width * scale + 0.5f), 1);
+                height = Math.max((int) (height * scale + 0.5f), 1);
+            }
+        }
+        if (width == source.getWidth() && height == source.getHeight()) {
+            return source;
+        }
+        try {
+            return Bitmap.createScaledBitmap(source, width, height, true);
         } catch (OutOfMemoryError e) {
             e.printStackTrace();
+            request.setTransientFailure();
             return null;
         }
     }
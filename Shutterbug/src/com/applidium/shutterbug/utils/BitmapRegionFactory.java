@@ -0,0 +1,87 @@
+package com.applidium.shutterbug.utils;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+
+// Decodes the region of a request without decoding the rest of the image, so
+// that a huge image can be shown tile by tile at full resolution.
+// BitmapRegionDecoder only exists on Gingerbread MR1 and above, check
+// isSupported first.
+public class BitmapRegionFactory {
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1;
+    }
+
+    // Decodes the region of an image already in memory. The options, if any,
+    // are used for the decode so that the caller can cancel it with
+    // requestCancelDecode.
+    public static Bitmap decodeRegionFromByteArray(byte[] data, DownloadRequest request, BitmapFactory.Options options) {
+        if (data == null || request == null || !isSupported()) {
+            return null;
+        }
+        BitmapRegionDecoder decoder = null;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+            return decodeRegion(decoder, request, options);
+        } catch (IOException e) {
+            e.printStackTrace();
+            request.setTransientFailure();
+            return null;
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            request.setTransientFailure();
+            return null;
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+    }
+
+    // Same as above for an image in a file, which the decoder reads itself
+    public static Bitmap decodeRegionFromFileDescriptor(FileDescriptor fd, DownloadRequest request, BitmapFactory.Options options) {
+        if (fd == null || request == null || !isSupported()) {
+            return null;
+        }
+        BitmapRegionDecoder decoder = null;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(fd, false);
+            return decodeRegion(decoder, request, options);
+        } catch (IOException e) {
+            e.printStackTrace();
+            request.setTransientFailure();
+            return null;
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            request.setTransientFailure();
+            return null;
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+    }
+
+    private static Bitmap decodeRegion(BitmapRegionDecoder decoder, DownloadRequest request, BitmapFactory.Options options) {
+        if (decoder == null) {
+            return null;
+        }
+        // decodeRegion rejects regions that go past the image
+        Rect region = new Rect(request.getRegion());
+        if (!region.intersect(0, 0, decoder.getWidth(), decoder.getHeight())) {
+            return null;
+        }
+        if (options == null) {
+            options = new BitmapFactory.Options();
+        }
+        options.inSampleSize = request.getRegionSampleSize();
+        options.inPreferredConfig = request.getBitmapConfig(options);
+        return decoder.decodeRegion(region, options);
+    }
+}
@@ -0,0 +1,17 @@
+package com.applidium.shutterbug.utils;
+
+import android.graphics.Bitmap;
+
+// Post-processes the bitmap decoded for a request (rounded corners, crop,
+// blur...). Transformations run on a decode thread and their result is cached,
+// so they run once per image instead of each time the image is displayed.
+public interface BitmapTransformation {
+    // Identifies the transformation and its parameters, two transformations
+    // with the same key must give the same result. It is part of cache keys.
+    String getKey();
+
+    // Returns the transformed bitmap, the source itself if there is nothing to
+    // do, or null if the transformation failed. The source must not be modified
+    // or recycled, it may be in use elsewhere.
+    Bitmap transform(Bitmap source);
+}
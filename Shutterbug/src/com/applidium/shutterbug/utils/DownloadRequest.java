@@ -1,15 +1,52 @@
 package com.applidium.shutterbug.utils;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Rect;
 
+import com.applidium.shutterbug.cache.CacheMetadata;
 import com.applidium.shutterbug.utils.ShutterbugManager.ShutterbugManagerListener;
 
 public class DownloadRequest {
-    private String                    mUrl;
-    private ShutterbugManagerListener mListener;
+    private final static String        MIME_TYPE_JPEG      = "image/jpeg";
+
+    private String                     mUrl;
+    private ShutterbugManagerListener  mListener;
 
-    private int                       mDesiredHeight = -1;
-    private int                       mDesiredWidth  = -1;
+    private int                        mDesiredHeight      = -1;
+    private int                        mDesiredWidth       = -1;
+    // Scale the sampled image down to just cover the desired size
+    private boolean                    mExactSize;
+    // Null for the default config, ARGB_8888
+    private Bitmap.Config              mBitmapConfig;
+    // Decode opaque images with RGB_565 unless mBitmapConfig is set
+    private boolean                    mRgb565Allowed;
+    // Applied in order to the decoded bitmap, null if there is none
+    private List<BitmapTransformation> mTransformations;
+    // Also keep the transformed bitmap on the disk
+    private boolean                    mTransformedDiskCached;
+    // Only this part of the image is decoded, sampled down by mRegionSampleSize
+    private Rect                       mRegion;
+    private int                        mRegionSampleSize   = 1;
+    // Only bring the image to the disk cache, without decoding it
+    private boolean                    mDiskOnly;
+    // Whether the listener must be notified on the main thread
+    private boolean                    mMainThreadListener = true;
+    private int                        mPriority           = ShutterbugScheduler.PRIORITY_NORMAL;
+    private boolean                    mCancelled;
+    // The options of the decode in progress for this request only
+    private BitmapFactory.Options      mDecodeOptions;
+    // A decode failed on an exception, such as memory pressure, rather than
+    // on an undecodable image
+    private boolean                    mTransientFailure;
+    // Set once the disk cache was looked up for this request and had no fresh
+    // image, with the metadata of the stale one if any
+    private boolean                    mDiskCacheMissed;
+    private CacheMetadata              mStaleMetadata;
 
     public DownloadRequest(String url, ShutterbugManagerListener listener) {
         mUrl = url;
@@ -24,8 +61,21 @@ public class DownloadRequest {
         mDesiredWidth = desiredWidth;
     }
 
+    // The region is in pixels of the full size image and the sample size is a
+    // power of 2
+    public DownloadRequest(String url, ShutterbugManagerListener listener, Rect region, int sampleSize) {
+        mUrl = url;
+        mListener = listener;
+
+        mRegion = new Rect(region);
+        mRegionSampleSize = Math.max(sampleSize, 1);
+    }
+
     public int getSampleSize(BitmapFactory.Options options) {
-        if (mDesiredHeight <= 0 || mDesiredWidth <= 0) {
+        if (hasRegion()) {
+            return mRegionSampleSize;
+        }
+        if (!hasDesiredSize()) {
             return 1;
         }
 
@@ -49,6 +99,222 @@ public class DownloadRequest {
         return inSampleSize;
     }
 
+    public boolean hasDesiredSize() {
+        return mDesiredHeight > 0 && mDesiredWidth > 0;
+    }
+
+    public int getDesiredHeight() {
+        return mDesiredHeight;
+    }
+
+    public int getDesiredWidth() {
+        return mDesiredWidth;
+    }
+
+    public boolean isExactSize() {
+        return mExactSize;
+    }
+
+    // Sampling only divides the size of the image by powers of 2, so the
+    // bitmap can be up to twice as large as the desired size in each
+    // dimension. With an exact size it is scaled down further, to the
+    // smallest size that still covers the desired size.
+    public void setExactSize(boolean exactSize) {
+        mExactSize = exactSize;
+    }
+
+    public Bitmap.Config getBitmapConfig() {
+        return mBitmapConfig;
+    }
+
+    // The config to decode the image with, whatever the image is
+    public void setBitmapConfig(Bitmap.Config bitmapConfig) {
+        mBitmapConfig = bitmapConfig;
+    }
+
+    public boolean isRgb565Allowed() {
+        return mRgb565Allowed;
+    }
+
+    // Lets opaque images, for now JPEG images, be decoded with RGB_565, which
+    // takes half the memory of ARGB_8888 at the cost of some color banding
+    public void setRgb565Allowed(boolean rgb565Allowed) {
+        mRgb565Allowed = rgb565Allowed;
+    }
+
+    // The config to decode an image with, given its bounds
+    public Bitmap.Config getBitmapConfig(BitmapFactory.Options options) {
+        if (mBitmapConfig != null) {
+            return mBitmapConfig;
+        }
+        if (mRgb565Allowed && MIME_TYPE_JPEG.equals(options.outMimeType)) {
+            return Bitmap.Config.RGB_565;
+        }
+        return Bitmap.Config.ARGB_8888;
+    }
+
+    // Whether a bitmap of this config decoded for another request can be
+    // handed out to this one
+    public boolean acceptsBitmapConfig(Bitmap.Config config) {
+        if (mBitmapConfig != null) {
+            return config == mBitmapConfig;
+        }
+        return config == Bitmap.Config.ARGB_8888 || (mRgb565Allowed && config == Bitmap.Config.RGB_565);
+    }
+
+    // Transformations run one after the other, in the order they were added
+    public void addTransformation(BitmapTransformation transformation) {
+        if (mTransformations == null) {
+            mTransformations = new ArrayList<BitmapTransformation>();
+        }
+        mTransformations.add(transformation);
+    }
+
+    public List<BitmapTransformation> getTransformations() {
+        if (mTransformations == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(mTransformations);
+    }
+
+    public boolean hasTransformations() {
+        return mTransformations != null && !mTransformations.isEmpty();
+    }
+
+    public boolean isTransformedDiskCached() {
+        return mTransformedDiskCached;
+    }
+
+    // Keeps the transformed bitmap in the disk cache too, next to the image,
+    // so that the transformations don't run again once it has left the memory
+    // cache. Only worth it for transformations slower than decoding a PNG.
+    public void setTransformedDiskCached(boolean transformedDiskCached) {
+        mTransformedDiskCached = transformedDiskCached;
+    }
+
+    public boolean hasRegion() {
+        return mRegion != null;
+    }
+
+    public Rect getRegion() {
+        return mRegion;
+    }
+
+    public int getRegionSampleSize() {
+        return mRegionSampleSize;
+    }
+
+    // Identifies the bitmap this request decodes to, among all the bitmaps
+    // decoded from the same url
+    public String getVariantKey() {
+        return getSizeKey() + getConfigKey() + getTransformationKey();
+    }
+
+    private String getSizeKey() {
+        if (hasRegion()) {
+            return "region" + mRegion.left + "," + mRegion.top + "," + mRegion.right + "," + mRegion.bottom + "/" + mRegionSampleSize;
+        }
+        if (!hasDesiredSize()) {
+            return "full";
+        }
+        return mDesiredWidth + "x" + mDesiredHeight + (mExactSize ? "exact" : "");
+    }
+
+    private String getTransformationKey() {
+        if (!hasTransformations()) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder();
+        for (BitmapTransformation transformation : mTransformations) {
+            builder.append('/').append(transformation.getKey());
+        }
+        return builder.toString();
+    }
+
+    private String getConfigKey() {
+        if (mBitmapConfig != null) {
+            return "/" + mBitmapConfig.name();
+        }
+        if (mRgb565Allowed) {
+            return "/opaque565";
+        }
+        return "";
+    }
+
+    public boolean isDiskOnly() {
+        return mDiskOnly;
+    }
+
+    public void setDiskOnly(boolean diskOnly) {
+        mDiskOnly = diskOnly;
+    }
+
+    public boolean hasMainThreadListener() {
+        return mMainThreadListener;
+    }
+
+    public void setMainThreadListener(boolean mainThreadListener) {
+        mMainThreadListener = mainThreadListener;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    // Also stops the decode started for this request, if any
+    public synchronized void cancel() {
+        mCancelled = true;
+        if (mDecodeOptions != null) {
+            mDecodeOptions.requestCancelDecode();
+        }
+    }
+
+    // Registers the options of a decode done for this request only, returns
+    // false if the request is already canceled
+    public synchronized boolean startDecode(BitmapFactory.Options options) {
+        if (mCancelled) {
+            return false;
+        }
+        mDecodeOptions = options;
+        return true;
+    }
+
+    public synchronized void finishDecode() {
+        mDecodeOptions = null;
+    }
+
+    public synchronized void setTransientFailure() {
+        mTransientFailure = true;
+    }
+
+    // Whether a failed decode is worth trying again later
+    public synchronized boolean hasTransientFailure() {
+        return mTransientFailure;
+    }
+
+    // Lets the download revalidate the stale image, if any, without looking
+    // the disk cache up again
+    public synchronized void onDiskCacheMiss(CacheMetadata staleMetadata) {
+        mDiskCacheMissed = true;
+        mStaleMetadata = staleMetadata;
+    }
+
+    public synchronized boolean hasDiskCacheMissed() {
+        return mDiskCacheMissed;
+    }
+
+    public synchronized CacheMetadata getStaleMetadata() {
+        return mStaleMetadata;
+    }
+
     public String getUrl() {
         return mUrl;
     }
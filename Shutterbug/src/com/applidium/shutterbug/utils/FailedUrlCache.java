@@ -0,0 +1,90 @@
+package com.applidium.shutterbug.utils;
+
+import android.os.SystemClock;
+
+import com.applidium.shutterbug.cache.LruCache;
+
+// Remembers the urls that recently failed so that they are not downloaded
+// again right away. Transient failures (timeouts, server errors) are retried
+// after an exponential backoff, permanent ones (missing or undecodable images)
+// after a longer fixed delay.
+public class FailedUrlCache {
+    private final static int                DEFAULT_MAX_SIZE         = 256;
+    private final static long               DEFAULT_INITIAL_BACKOFF  = 2 * 1000;
+    private final static long               DEFAULT_MAX_BACKOFF      = 5 * 60 * 1000;
+    private final static long               DEFAULT_PERMANENT_EXPIRY = 60 * 60 * 1000;
+
+    private final LruCache<String, Failure> mFailures;
+    private long                            mInitialBackoff          = DEFAULT_INITIAL_BACKOFF;
+    private long                            mMaxBackoff              = DEFAULT_MAX_BACKOFF;
+    private long                            mPermanentFailureExpiry  = DEFAULT_PERMANENT_EXPIRY;
+
+    public FailedUrlCache() {
+        mFailures = new LruCache<String, Failure>(DEFAULT_MAX_SIZE);
+    }
+
+    // Returns true if the url failed recently enough that it should not be
+    // tried again yet
+    public boolean isBlocked(String url) {
+        Failure failure = mFailures.get(url);
+        if (failure == null) {
+            return false;
+        }
+        synchronized (failure) {
+            return SystemClock.elapsedRealtime() < failure.mRetryTime;
+        }
+    }
+
+    // Synchronized so that concurrent failures of a url share one Failure and
+    // each count as an attempt
+    public synchronized void onFailure(String url, boolean permanent) {
+        Failure failure = mFailures.get(url);
+        if (failure == null) {
+            failure = new Failure();
+            mFailures.put(url, failure);
+        }
+        long delay;
+        if (permanent) {
+            delay = mPermanentFailureExpiry;
+        } else {
+            delay = mInitialBackoff;
+            // Double the delay for each consecutive failure, without
+            // overflowing
+            for (int i = 0; i < failure.mAttempts && delay < mMaxBackoff; i++) {
+                delay *= 2;
+            }
+            delay = Math.min(delay, mMaxBackoff);
+        }
+        synchronized (failure) {
+            failure.mAttempts++;
+            failure.mRetryTime = SystemClock.elapsedRealtime() + delay;
+        }
+    }
+
+    public void onSuccess(String url) {
+        mFailures.remove(url);
+    }
+
+    public void clear() {
+        mFailures.evictAll();
+    }
+
+    // The first retry of a transient failure waits initialBackoff, and each
+    // further failure doubles the wait up to maxBackoff
+    public synchronized void setBackoff(long initialBackoff, long maxBackoff) {
+        if (initialBackoff < 0 || maxBackoff < initialBackoff) {
+            throw new IllegalArgumentException("Invalid backoff: " + initialBackoff + ", " + maxBackoff);
+        }
+        mInitialBackoff = initialBackoff;
+        mMaxBackoff = maxBackoff;
+    }
+
+    public synchronized void setPermanentFailureExpiry(long expiry) {
+        mPermanentFailureExpiry = expiry;
+    }
+
+    private static class Failure {
+        private int  mAttempts;
+        private long mRetryTime;
+    }
+}
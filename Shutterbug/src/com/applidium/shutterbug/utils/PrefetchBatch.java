@@ -0,0 +1,53 @@
+package com.applidium.shutterbug.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+
+import com.applidium.shutterbug.utils.ShutterbugManager.ShutterbugManagerListener;
+
+// The downloads started by one call to ShutterbugManager.prefetch
+public class PrefetchBatch {
+    private ShutterbugManager         mManager;
+    private AtomicInteger             mRemainingCount = new AtomicInteger();
+    private ShutterbugManagerListener mListener;
+
+    PrefetchBatch(ShutterbugManager manager) {
+        mManager = manager;
+        // Called on background threads
+        mListener = new ShutterbugManagerListener() {
+            @Override
+            public void onImageSuccess(ShutterbugManager imageManager, Bitmap bitmap, String url) {
+                mRemainingCount.decrementAndGet();
+            }
+
+            @Override
+            public void onImageFailure(ShutterbugManager imageManager, String url) {
+                mRemainingCount.decrementAndGet();
+            }
+        };
+    }
+
+    ShutterbugManagerListener getListener() {
+        return mListener;
+    }
+
+    void setRemainingCount(int count) {
+        mRemainingCount.set(count);
+    }
+
+    // Number of images neither in the disk cache yet nor failed
+    public int getRemainingCount() {
+        return Math.max(mRemainingCount.get(), 0);
+    }
+
+    public boolean isDone() {
+        return getRemainingCount() == 0;
+    }
+
+    // Cancels the downloads that no other request is waiting for
+    public void cancel() {
+        mManager.cancel(mListener);
+        mRemainingCount.set(0);
+    }
+}
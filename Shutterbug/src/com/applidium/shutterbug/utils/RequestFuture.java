@@ -0,0 +1,176 @@
+package com.applidium.shutterbug.utils;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.graphics.Bitmap;
+import android.os.Looper;
+
+import com.applidium.shutterbug.cache.ImageCache;
+import com.applidium.shutterbug.utils.ShutterbugManager.ShutterbugManagerListener;
+
+// A request whose result is waited for instead of being delivered to a
+// listener. The manager completes it from whichever thread the result is
+// ready on, there is no need for the main thread to be free.
+abstract class RequestFuture<V> implements Future<V>, ShutterbugManagerListener {
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private ShutterbugManager    mManager;
+    private DownloadRequest      mDownloadRequest;
+    private String               mUrl;
+    private Bitmap               mBitmap;
+    private boolean              mSucceeded;
+    private boolean              mCancelled;
+
+    RequestFuture(ShutterbugManager manager, String url) {
+        mManager = manager;
+        mUrl = url;
+    }
+
+    // Called once the manager has registered the request, or with null if it
+    // refused it
+    void setDownloadRequest(DownloadRequest downloadRequest) {
+        synchronized (this) {
+            if (downloadRequest != null && !mCancelled) {
+                mDownloadRequest = downloadRequest;
+                return;
+            }
+        }
+        if (downloadRequest == null) {
+            onImageFailure(mManager, mUrl);
+        } else {
+            // Canceled before the request was known
+            mManager.cancel(downloadRequest);
+        }
+    }
+
+    @Override
+    public void onImageSuccess(ShutterbugManager imageManager, Bitmap bitmap, String url) {
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            mBitmap = bitmap;
+            mSucceeded = true;
+            mDone.countDown();
+        }
+    }
+
+    @Override
+    public void onImageFailure(ShutterbugManager imageManager, String url) {
+        synchronized (this) {
+            if (!isDone()) {
+                mDone.countDown();
+            }
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        DownloadRequest downloadRequest;
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            mCancelled = true;
+            mDone.countDown();
+            downloadRequest = mDownloadRequest;
+        }
+        if (downloadRequest != null) {
+            mManager.cancel(downloadRequest);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        checkNotMainThread();
+        mDone.await();
+        return getResult();
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        checkNotMainThread();
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private void checkNotMainThread() {
+        if (!isDone() && Looper.myLooper() == Looper.getMainLooper()) {
+            throw new IllegalStateException("Waiting for an image would block the main thread, use a listener instead");
+        }
+    }
+
+    private V getResult() throws ExecutionException {
+        Bitmap bitmap;
+        synchronized (this) {
+            if (mCancelled) {
+                throw new CancellationException();
+            }
+            if (!mSucceeded) {
+                throw new ExecutionException(new IOException("Could not load " + mUrl));
+            }
+            bitmap = mBitmap;
+        }
+        try {
+            return convert(bitmap);
+        } catch (IOException e) {
+            throw new ExecutionException(e);
+        }
+    }
+
+    // Turns the delivered bitmap into the result, on the waiting thread
+    protected abstract V convert(Bitmap bitmap) throws IOException;
+
+    String getUrl() {
+        return mUrl;
+    }
+
+    static class BitmapFuture extends RequestFuture<Bitmap> {
+        BitmapFuture(ShutterbugManager manager, String url) {
+            super(manager, url);
+        }
+
+        @Override
+        protected Bitmap convert(Bitmap bitmap) {
+            return bitmap;
+        }
+    }
+
+    // Waits for the image to be in the disk cache, without decoding it, and
+    // reads its bytes back
+    static class BytesFuture extends RequestFuture<byte[]> {
+        private ImageCache mImageCache;
+
+        BytesFuture(ShutterbugManager manager, String url, ImageCache imageCache) {
+            super(manager, url);
+            mImageCache = imageCache;
+        }
+
+        @Override
+        protected byte[] convert(Bitmap bitmap) throws IOException {
+            byte[] data = mImageCache.readFromDisk(ShutterbugManager.getCacheKey(getUrl()));
+            if (data == null) {
+                throw new IOException("Evicted from the disk cache: " + getUrl());
+            }
+            return data;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.applidium.shutterbug.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.applidium.shutterbug.downloader.ShutterbugDownloader;
+import com.applidium.shutterbug.utils.ShutterbugManager.ShutterbugManagerListener;
+
+// Tracks the requests in flight, indexed so that dispatching a result or
+// canceling a request costs the same however many other requests are pending.
+// Every operation is atomic, and so is removing a request: a request is
+// completed or canceled exactly once.
+class RequestRegistry {
+    private Set<DownloadRequest>                                 mRequests         = new HashSet<DownloadRequest>();
+    private Map<ShutterbugManagerListener, Set<DownloadRequest>> mListenerRequests = new HashMap<ShutterbugManagerListener, Set<DownloadRequest>>();
+    // Downloads in progress and the requests waiting for each of them, by url
+    private Map<String, ShutterbugDownloader>                    mDownloaders      = new HashMap<String, ShutterbugDownloader>();
+    private Map<String, Set<DownloadRequest>>                    mDownloadRequests = new HashMap<String, Set<DownloadRequest>>();
+
+    synchronized void add(DownloadRequest request) {
+        mRequests.add(request);
+        Set<DownloadRequest> listenerRequests = mListenerRequests.get(request.getListener());
+        if (listenerRequests == null) {
+            listenerRequests = new HashSet<DownloadRequest>();
+            mListenerRequests.put(request.getListener(), listenerRequests);
+        }
+        listenerRequests.add(request);
+    }
+
+    synchronized boolean contains(DownloadRequest request) {
+        return mRequests.contains(request);
+    }
+
+    synchronized int size() {
+        return mRequests.size();
+    }
+
+    // Returns false if the request had already completed or been canceled
+    synchronized boolean remove(DownloadRequest request) {
+        if (!mRequests.remove(request)) {
+            return false;
+        }
+        Set<DownloadRequest> listenerRequests = mListenerRequests.get(request.getListener());
+        if (listenerRequests != null) {
+            listenerRequests.remove(request);
+            if (listenerRequests.isEmpty()) {
+                mListenerRequests.remove(request.getListener());
+            }
+        }
+        return true;
+    }
+
+    // Returns the download the request was waiting for if no other request
+    // needs it anymore, the caller cancels it once out of the registry lock
+    synchronized ShutterbugDownloader detachFromDownload(DownloadRequest request) {
+        String url = request.getUrl();
+        Set<DownloadRequest> downloadRequests = mDownloadRequests.get(url);
+        if (downloadRequests == null || !downloadRequests.remove(request) || !downloadRequests.isEmpty()) {
+            return null;
+        }
+        mDownloadRequests.remove(url);
+        return mDownloaders.remove(url);
+    }
+
+    synchronized List<DownloadRequest> getRequests(ShutterbugManagerListener listener) {
+        Set<DownloadRequest> listenerRequests = mListenerRequests.get(listener);
+        if (listenerRequests == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<DownloadRequest>(listenerRequests);
+    }
+
+    synchronized ShutterbugDownloader getDownloader(String url) {
+        return mDownloaders.get(url);
+    }
+
+    synchronized void attachToDownload(DownloadRequest request, ShutterbugDownloader downloader) {
+        String url = request.getUrl();
+        mDownloaders.put(url, downloader);
+        Set<DownloadRequest> downloadRequests = mDownloadRequests.get(url);
+        if (downloadRequests == null) {
+            downloadRequests = new LinkedHashSet<DownloadRequest>();
+            mDownloadRequests.put(url, downloadRequests);
+        }
+        downloadRequests.add(request);
+    }
+
+    synchronized List<DownloadRequest> getDownloadRequests(String url) {
+        Set<DownloadRequest> downloadRequests = mDownloadRequests.get(url);
+        if (downloadRequests == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<DownloadRequest>(downloadRequests);
+    }
+
+    // Forgets the download and returns the requests that were waiting for it,
+    // they remain registered until they are removed
+    synchronized List<DownloadRequest> finishDownload(ShutterbugDownloader downloader) {
+        String url = downloader.getUrl();
+        if (mDownloaders.get(url) != downloader) {
+            return Collections.emptyList();
+        }
+        mDownloaders.remove(url);
+        Set<DownloadRequest> downloadRequests = mDownloadRequests.remove(url);
+        if (downloadRequests == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<DownloadRequest>(downloadRequests);
+    }
+}
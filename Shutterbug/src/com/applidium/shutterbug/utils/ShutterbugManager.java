@@ -1,30 +1,31 @@
 package com.applidium.shutterbug.utils;
 
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.concurrent.Future;
 
 import android.R;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.graphics.drawable.ColorDrawable;
-import android.os.AsyncTask;
+import android.os.Looper;
 import android.widget.ImageView;
 
-import com.applidium.shutterbug.cache.DiskLruCache.Snapshot;
+import com.applidium.shutterbug.cache.CachedImage;
 import com.applidium.shutterbug.cache.ImageCache;
 import com.applidium.shutterbug.cache.ImageCache.ImageCacheListener;
 import com.applidium.shutterbug.downloader.ShutterbugDownloader;
 import com.applidium.shutterbug.downloader.ShutterbugDownloader.ShutterbugDownloaderListener;
-import com.applidium.shutterbug.utils.BitmapFactoryScale.InputStreamGenerator;
+import com.applidium.shutterbug.downloader.ShutterbugTransport;
+import com.applidium.shutterbug.downloader.UrlConnectionTransport;
 
 public class ShutterbugManager implements ImageCacheListener, ShutterbugDownloaderListener {
     public interface ShutterbugManagerListener {
@@ -33,52 +34,188 @@ public class ShutterbugManager implements ImageCacheListener, ShutterbugDownload
         void onImageFailure(ShutterbugManager imageManager, String url);
     }
 
-    private static ShutterbugManager          sImageManager;
+    // Listeners of this kind also get low resolution previews of large images
+    // while they download, on the main thread, before onImageSuccess
+    public interface ShutterbugManagerPreviewListener extends ShutterbugManagerListener {
+        void onImagePreview(ShutterbugManager imageManager, Bitmap preview, String url);
+    }
 
-    private Context                           mContext;
-    private List<String>                      mFailedUrls             = new ArrayList<String>();
-    private List<ShutterbugManagerListener>   mCacheListeners         = new ArrayList<ShutterbugManagerListener>();
-    private List<String>                      mCacheUrls              = new ArrayList<String>();
-    private Map<String, ShutterbugDownloader> mDownloadersMap         = new HashMap<String, ShutterbugDownloader>();
-    private List<DownloadRequest>             mDownloadRequests       = new ArrayList<DownloadRequest>();
-    private List<ShutterbugManagerListener>   mDownloadImageListeners = new ArrayList<ShutterbugManagerListener>();
-    private List<ShutterbugDownloader>        mDownloaders            = new ArrayList<ShutterbugDownloader>();
+    private static ShutterbugManager             sImageManager;
 
-    final static private int                  LISTENER_NOT_FOUND      = -1;
+    private Context                              mContext;
+    private FailedUrlCache                       mFailedUrls         = new FailedUrlCache();
+    private volatile ShutterbugTransport         mTransport          = new UrlConnectionTransport();
+    private RequestRegistry                      mRegistry           = new RequestRegistry();
+    // The listener of the pending request of each image view, guarded by the
+    // registry lock
+    private Map<ImageView, ImageManagerListener> mImageViewListeners = new HashMap<ImageView, ImageManagerListener>();
 
     public ShutterbugManager(Context context) {
         mContext = context;
     }
 
-    public static ShutterbugManager getSharedImageManager(Context context) {
+    public static synchronized ShutterbugManager getSharedImageManager(Context context) {
         if (sImageManager == null) {
-            sImageManager = new ShutterbugManager(context);
+            // Don't leak the activity that happens to ask first
+            sImageManager = new ShutterbugManager(context.getApplicationContext());
         }
         return sImageManager;
     }
 
-    public void download(String url, ShutterbugManagerListener listener) {
-        download(url, listener, -1, -1);
+    public DownloadRequest download(String url, ShutterbugManagerListener listener) {
+        return download(url, listener, -1, -1);
+    }
+
+    // Returns a handle on the request that can be passed to cancel, or null if
+    // nothing will be downloaded. May be called from any thread, the listener
+    // is always notified on the main thread.
+    public DownloadRequest download(String url, ShutterbugManagerListener listener, int desiredHeight, int desiredWidth) {
+        if (url == null || listener == null) {
+            return null;
+        }
+
+        return start(new DownloadRequest(url, listener, desiredHeight, desiredWidth));
+    }
+
+    // Starts a request built by the caller, to set the options of
+    // DownloadRequest that have no shortcut here. A request can only be
+    // started once.
+    public DownloadRequest download(DownloadRequest downloadRequest) {
+        if (downloadRequest == null || downloadRequest.getUrl() == null || downloadRequest.getListener() == null) {
+            return null;
+        }
+        return start(downloadRequest);
     }
 
-    public void download(String url, ShutterbugManagerListener listener, int desiredHeight, int desiredWidth) {
-        if (url == null || listener == null || mFailedUrls.contains(url)) {
-            return;
+    // Decodes only a region of the image, in pixels of the full size image,
+    // sampled down by sampleSize (a power of 2). Meant for zoomable views of
+    // images too large to be decoded whole: the image is downloaded once and
+    // each tile is decoded from the disk cache and kept in the memory cache.
+    // Fails on versions older than Gingerbread MR1.
+    public DownloadRequest downloadRegion(String url, Rect region, int sampleSize, ShutterbugManagerListener listener) {
+        if (url == null || region == null || listener == null) {
+            return null;
         }
+        return start(new DownloadRequest(url, listener, region, sampleSize));
+    }
 
-        mCacheListeners.add(listener);
-        mCacheUrls.add(url);
-        ImageCache.getSharedImageCache(mContext).queryCache(getCacheKey(url), this, new DownloadRequest(url, listener, desiredHeight, desiredWidth));
+    private DownloadRequest start(DownloadRequest downloadRequest) {
+        mRegistry.add(downloadRequest);
+        if (mFailedUrls.isBlocked(downloadRequest.getUrl())) {
+            // Failed recently, don't retry yet
+            dispatchFailure(downloadRequest);
+            return downloadRequest;
+        }
+        if (downloadRequest.hasRegion() && !BitmapRegionFactory.isSupported()) {
+            dispatchFailure(downloadRequest);
+            return downloadRequest;
+        }
+        ImageCache.getSharedImageCache(mContext).queryCache(getCacheKey(downloadRequest.getUrl()), this, downloadRequest);
+        return downloadRequest;
     }
 
-    public void download(String url, final ImageView imageView) {
-        download(url, imageView, -1, -1);
+    public DownloadRequest download(String url, final ImageView imageView) {
+        return download(url, imageView, -1, -1);
     }
 
-    public void download(String url, final ImageView imageView, int desiredHeight, int desiredWidth) {
+    public DownloadRequest download(String url, final ImageView imageView, int desiredHeight, int desiredWidth) {
         imageView.setImageDrawable(new ColorDrawable(mContext.getResources().getColor(R.color.transparent)));
         cancel(imageView);
-        download(url, new ImageManagerListener(imageView), desiredHeight, desiredWidth);
+        ImageManagerListener listener = new ImageManagerListener(imageView);
+        DownloadRequest downloadRequest = download(url, listener, desiredHeight, desiredWidth);
+        synchronized (mRegistry) {
+            if (downloadRequest != null && mRegistry.contains(downloadRequest)) {
+                // Not served from memory right away
+                mImageViewListeners.put(imageView, listener);
+            }
+        }
+        return downloadRequest;
+    }
+
+    // Loads the image for a worker thread that can wait for it, the result is
+    // ready as soon as the image is decoded, whatever the main thread is doing.
+    // Fails with an ExecutionException if the image could not be loaded.
+    public Future<Bitmap> get(String url) {
+        return get(url, -1, -1);
+    }
+
+    public Future<Bitmap> get(String url, int desiredHeight, int desiredWidth) {
+        RequestFuture<Bitmap> future = new RequestFuture.BitmapFuture(this, url);
+        DownloadRequest downloadRequest = null;
+        if (url != null && !mFailedUrls.isBlocked(url)) {
+            downloadRequest = new DownloadRequest(url, future, desiredHeight, desiredWidth);
+        }
+        enqueue(future, downloadRequest);
+        return future;
+    }
+
+    // Same as above for the bytes of the image as they were downloaded, which
+    // are read from the disk cache without being decoded
+    public Future<byte[]> getBytes(String url) {
+        RequestFuture<byte[]> future = new RequestFuture.BytesFuture(this, url, ImageCache.getSharedImageCache(mContext));
+        DownloadRequest downloadRequest = null;
+        if (url != null && !mFailedUrls.isBlocked(url)) {
+            downloadRequest = new DownloadRequest(url, future);
+            downloadRequest.setDiskOnly(true);
+        }
+        enqueue(future, downloadRequest);
+        return future;
+    }
+
+    // Downloads the images to the disk cache only, so that showing them later
+    // costs a disk read instead of a download. At PRIORITY_LOW the downloads
+    // wait for the other downloads to be done.
+    public PrefetchBatch prefetch(List<String> urls, int priority) {
+        PrefetchBatch batch = new PrefetchBatch(this);
+        List<DownloadRequest> downloadRequests = new ArrayList<DownloadRequest>(urls.size());
+        for (String url : urls) {
+            if (url == null || mFailedUrls.isBlocked(url)) {
+                continue;
+            }
+            DownloadRequest downloadRequest = new DownloadRequest(url, batch.getListener());
+            downloadRequest.setDiskOnly(true);
+            downloadRequest.setMainThreadListener(false);
+            downloadRequest.setPriority(priority);
+            downloadRequests.add(downloadRequest);
+        }
+        batch.setRemainingCount(downloadRequests.size());
+        ImageCache imageCache = ImageCache.getSharedImageCache(mContext);
+        for (DownloadRequest downloadRequest : downloadRequests) {
+            mRegistry.add(downloadRequest);
+            imageCache.queryCache(getCacheKey(downloadRequest.getUrl()), this, downloadRequest);
+        }
+        return batch;
+    }
+
+    private <V> void enqueue(RequestFuture<V> future, DownloadRequest downloadRequest) {
+        if (downloadRequest != null) {
+            downloadRequest.setMainThreadListener(false);
+            mRegistry.add(downloadRequest);
+        }
+        future.setDownloadRequest(downloadRequest);
+        if (downloadRequest != null) {
+            ImageCache.getSharedImageCache(mContext).queryCache(getCacheKey(downloadRequest.getUrl()), this, downloadRequest);
+        }
+    }
+
+    public ShutterbugTransport getTransport() {
+        return mTransport;
+    }
+
+    // Replaces the HTTP stack used by the downloads started from now on
+    public void setTransport(ShutterbugTransport transport) {
+        if (transport == null) {
+            throw new IllegalArgumentException("transport == null");
+        }
+        mTransport = transport;
+    }
+
+    public FailedUrlCache getFailedUrlCache() {
+        return mFailedUrls;
+    }
+
+    public ShutterbugScheduler getScheduler() {
+        return ShutterbugScheduler.getSharedScheduler();
     }
 
     public static String getCacheKey(String url) {
@@ -94,169 +231,234 @@ public class ShutterbugManager implements ImageCacheListener, ShutterbugDownload
         return null;
     }
 
-    private int getListenerIndex(ShutterbugManagerListener listener, String url) {
-        for (int index = 0; index < mCacheListeners.size(); index++) {
-            if (mCacheListeners.get(index) == listener && mCacheUrls.get(index).equals(url)) {
-                return index;
+    // Unregisters the request, returns false if it has since been canceled
+    private boolean finish(DownloadRequest downloadRequest) {
+        ShutterbugDownloader orphanedDownloader;
+        synchronized (mRegistry) {
+            if (!mRegistry.remove(downloadRequest)) {
+                return false;
             }
+            orphanedDownloader = mRegistry.detachFromDownload(downloadRequest);
+            ShutterbugManagerListener listener = downloadRequest.getListener();
+            if (listener instanceof ImageManagerListener) {
+                ImageView imageView = ((ImageManagerListener) listener).mImageView;
+                if (mImageViewListeners.get(imageView) == listener) {
+                    mImageViewListeners.remove(imageView);
+                }
+            }
+        }
+        if (orphanedDownloader != null) {
+            // No more requests are waiting for this download
+            orphanedDownloader.cancel();
         }
-        return LISTENER_NOT_FOUND;
+        return true;
     }
 
-    @Override
-    public void onImageFound(ImageCache imageCache, Bitmap bitmap, String key, DownloadRequest downloadRequest) {
-        final String url = downloadRequest.getUrl();
-        final ShutterbugManagerListener listener = downloadRequest.getListener();
+    // Completes the request on the thread its listener expects, unless it is
+    // canceled first
+    private void dispatchSuccess(final DownloadRequest downloadRequest, final Bitmap bitmap) {
+        dispatch(downloadRequest, new Runnable() {
+            @Override
+            public void run() {
+                if (finish(downloadRequest)) {
+                    downloadRequest.getListener().onImageSuccess(ShutterbugManager.this, bitmap, downloadRequest.getUrl());
+                }
+            }
+        });
+    }
 
-        int idx = getListenerIndex(listener, url);
-        if (idx == LISTENER_NOT_FOUND) {
-            // Request has since been canceled
-            return;
+    private void dispatchFailure(final DownloadRequest downloadRequest) {
+        dispatch(downloadRequest, new Runnable() {
+            @Override
+            public void run() {
+                if (finish(downloadRequest)) {
+                    downloadRequest.getListener().onImageFailure(ShutterbugManager.this, downloadRequest.getUrl());
+                }
+            }
+        });
+    }
+
+    private static void dispatch(DownloadRequest downloadRequest, Runnable runnable) {
+        if (!downloadRequest.hasMainThreadListener() || Looper.myLooper() == Looper.getMainLooper()) {
+            runnable.run();
+        } else {
+            ShutterbugTask.postToMainThread(runnable);
         }
+    }
 
-        listener.onImageSuccess(this, bitmap, url);
-        mCacheListeners.remove(idx);
-        mCacheUrls.remove(idx);
+    @Override
+    public void onImageFound(ImageCache imageCache, Bitmap bitmap, String key, DownloadRequest downloadRequest) {
+        dispatchSuccess(downloadRequest, bitmap);
     }
 
     @Override
     public void onImageNotFound(ImageCache imageCache, String key, DownloadRequest downloadRequest) {
         final String url = downloadRequest.getUrl();
-        final ShutterbugManagerListener listener = downloadRequest.getListener();
+        synchronized (mRegistry) {
+            if (!mRegistry.contains(downloadRequest)) {
+                // Request has since been canceled
+                return;
+            }
 
-        int idx = getListenerIndex(listener, url);
-        if (idx == LISTENER_NOT_FOUND) {
-            // Request has since been canceled
-            return;
+            // Share the same downloader for identical URLs so we don't download
+            // the same URL several times
+            ShutterbugDownloader downloader = mRegistry.getDownloader(url);
+            boolean isNewDownload = downloader == null;
+            if (isNewDownload) {
+                downloader = new ShutterbugDownloader(url, this, downloadRequest, ImageCache.getSharedImageCache(mContext), mTransport);
+            } else {
+                downloader.raisePriority(downloadRequest.getPriority());
+            }
+            if (downloadRequest.getListener() instanceof ShutterbugManagerPreviewListener) {
+                downloader.setPreviewEnabled(true);
+            }
+            mRegistry.attachToDownload(downloadRequest, downloader);
+            if (isNewDownload) {
+                downloader.start();
+            }
         }
-        mCacheListeners.remove(idx);
-        mCacheUrls.remove(idx);
+    }
 
-        // Share the same downloader for identical URLs so we don't download the
-        // same URL several times
-        ShutterbugDownloader downloader = mDownloadersMap.get(url);
-        if (downloader == null) {
-            downloader = new ShutterbugDownloader(url, this, downloadRequest);
-            downloader.start();
-            mDownloadersMap.put(url, downloader);
+    @Override
+    public void onImageDownloadSuccess(final ShutterbugDownloader downloader, final CachedImage cachedImage, final DownloadRequest downloadRequest) {
+        // Decode once per requested size, and share the result between the
+        // requests of that size
+        mFailedUrls.onSuccess(downloader.getUrl());
+        Map<String, List<DownloadRequest>> variants = new LinkedHashMap<String, List<DownloadRequest>>();
+        for (DownloadRequest request : mRegistry.finishDownload(downloader)) {
+            if (request.isDiskOnly()) {
+                // Nothing to decode, the image is on the disk now
+                dispatchSuccess(request, null);
+                continue;
+            }
+            List<DownloadRequest> requests = variants.get(request.getVariantKey());
+            if (requests == null) {
+                requests = new ArrayList<DownloadRequest>();
+                variants.put(request.getVariantKey(), requests);
+            }
+            requests.add(request);
+        }
+        for (List<DownloadRequest> requests : variants.values()) {
+            CachedImageDecoderTask task = new CachedImageDecoderTask(cachedImage, requests);
+            // As urgent as the most urgent request it decodes for
+            int priority = ShutterbugScheduler.PRIORITY_LOW;
+            for (DownloadRequest request : requests) {
+                priority = Math.max(priority, request.getPriority());
+            }
+            task.setPriority(priority);
+            ShutterbugScheduler.getSharedScheduler().submitDecodeTask(task);
         }
-        mDownloadRequests.add(downloadRequest);
-        mDownloadImageListeners.add(listener);
-        mDownloaders.add(downloader);
     }
 
     @Override
-    public void onImageDownloadSuccess(final ShutterbugDownloader downloader, final InputStream inputStream, final DownloadRequest downloadRequest) {
-        new InputStreamHandlingTask(downloader, downloadRequest).execute(inputStream);
+    public void onImageDownloadPreview(ShutterbugDownloader downloader, final Bitmap preview) {
+        for (final DownloadRequest request : mRegistry.getDownloadRequests(downloader.getUrl())) {
+            if (!(request.getListener() instanceof ShutterbugManagerPreviewListener)) {
+                continue;
+            }
+            dispatch(request, new Runnable() {
+                @Override
+                public void run() {
+                    // Still waiting for the image
+                    if (mRegistry.contains(request)) {
+                        ((ShutterbugManagerPreviewListener) request.getListener()).onImagePreview(ShutterbugManager.this, preview, request.getUrl());
+                    }
+                }
+            });
+        }
     }
 
     @Override
     public void onImageDownloadFailure(ShutterbugDownloader downloader, DownloadRequest downloadRequest) {
-        for (int idx = mDownloaders.size() - 1; idx >= 0; idx--) {
-            final int uidx = idx;
-            ShutterbugDownloader aDownloader = mDownloaders.get(uidx);
-            if (aDownloader == downloader) {
-                ShutterbugManagerListener listener = mDownloadImageListeners.get(uidx);
-                listener.onImageFailure(this, downloadRequest.getUrl());
-                mDownloaders.remove(uidx);
-                mDownloadImageListeners.remove(uidx);
-            }
+        mFailedUrls.onFailure(downloader.getUrl(), downloader.isPermanentFailure());
+        for (DownloadRequest request : mRegistry.finishDownload(downloader)) {
+            dispatchFailure(request);
         }
-        mDownloadersMap.remove(downloadRequest.getUrl());
-
     }
 
-    private class InputStreamHandlingTask extends AsyncTask<InputStream, Void, Bitmap> {
-        ShutterbugDownloader mDownloader;
-        DownloadRequest      mDownloadRequest;
+    private class CachedImageDecoderTask extends ShutterbugTask<Bitmap> {
+        CachedImage           mCachedImage;
+        List<DownloadRequest> mDownloadRequests;
+
+        CachedImageDecoderTask(CachedImage cachedImage, List<DownloadRequest> downloadRequests) {
+            mCachedImage = cachedImage;
+            mDownloadRequests = downloadRequests;
+        }
 
-        InputStreamHandlingTask(ShutterbugDownloader downloader, DownloadRequest downloadRequest) {
-            mDownloader = downloader;
-            mDownloadRequest = downloadRequest;
+        @Override
+        protected boolean postsResultToMainThread() {
+            // Each request is dispatched to the thread its listener expects
+            return false;
         }
 
         @Override
-        protected Bitmap doInBackground(InputStream... params) {
+        protected Bitmap doInBackground() {
+            if (areAllCancelled()) {
+                // Keep the image on the disk but don't decode it for nobody
+                return null;
+            }
             final ImageCache sharedImageCache = ImageCache.getSharedImageCache(mContext);
-            final String cacheKey = getCacheKey(mDownloadRequest.getUrl());
-            // Store the image in the cache
-            Snapshot cachedSnapshot = sharedImageCache.storeToDisk(params[0], cacheKey);
-            Bitmap bitmap = null;
-            if (cachedSnapshot != null) {
-                bitmap = BitmapFactoryScale.decodeSampledBitmapFromStream(new InputStreamGenerator() {
-                    @Override
-                    public InputStream getStream() {
-                        return sharedImageCache.queryDiskCache(cacheKey).getInputStream(0);
-                    }
-                }, mDownloadRequest);
-                if (bitmap != null) {
-                    sharedImageCache.storeToMemory(bitmap, cacheKey);
-                }
+            final DownloadRequest downloadRequest = mDownloadRequests.get(0);
+            Bitmap bitmap = sharedImageCache.decodeCachedImage(mCachedImage, downloadRequest);
+            bitmap = sharedImageCache.transform(bitmap, true, mCachedImage.getCacheKey(), mCachedImage.getMetadata(), downloadRequest);
+            if (bitmap != null) {
+                sharedImageCache.storeToMemory(bitmap, mCachedImage.getCacheKey(), downloadRequest);
             }
             return bitmap;
         }
 
+        private boolean areAllCancelled() {
+            for (DownloadRequest request : mDownloadRequests) {
+                if (!request.isCancelled()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         @Override
         protected void onPostExecute(Bitmap bitmap) {
-            // Notify all the downloadListener with this downloader
-            for (int idx = mDownloaders.size() - 1; idx >= 0; idx--) {
-                final int uidx = idx;
-                ShutterbugDownloader aDownloader = mDownloaders.get(uidx);
-                if (aDownloader == mDownloader) {
-                    ShutterbugManagerListener listener = mDownloadImageListeners.get(uidx);
-                    if (bitmap != null) {
-                        listener.onImageSuccess(ShutterbugManager.this, bitmap, mDownloadRequest.getUrl());
-                    } else {
-                        listener.onImageFailure(ShutterbugManager.this, mDownloadRequest.getUrl());
-                    }
-                    mDownloaders.remove(uidx);
-                    mDownloadImageListeners.remove(uidx);
+            if (bitmap == null && areAllCancelled()) {
+                return;
+            }
+            // Notify all the requests for this size that are still pending
+            for (DownloadRequest request : mDownloadRequests) {
+                if (bitmap != null) {
+                    dispatchSuccess(request, bitmap);
+                } else {
+                    dispatchFailure(request);
                 }
             }
-            if (bitmap != null) {
-            } else { // TODO add retry option
-                mFailedUrls.add(mDownloadRequest.getUrl());
+            DownloadRequest decodedRequest = mDownloadRequests.get(0);
+            if (bitmap == null && !decodedRequest.hasRegion()) {
+                // Downloaded fine but could not be decoded, downloading it
+                // again will not help unless the decode ran out of memory or
+                // the like. A region may just be out of the image.
+                mFailedUrls.onFailure(decodedRequest.getUrl(), !decodedRequest.hasTransientFailure());
             }
-            mDownloadersMap.remove(mDownloadRequest.getUrl());
         }
 
     }
 
-    public void cancel(ShutterbugManagerListener listener) {
-        int idx;
-        while ((idx = mCacheListeners.indexOf(listener)) != -1) {
-            mCacheListeners.remove(idx);
-            mCacheUrls.remove(idx);
+    public void cancel(DownloadRequest downloadRequest) {
+        if (downloadRequest != null && finish(downloadRequest)) {
+            // Stop the work done for this request alone
+            downloadRequest.cancel();
         }
+    }
 
-        while ((idx = mDownloadImageListeners.indexOf(listener)) != -1) {
-            ShutterbugDownloader downloader = mDownloaders.get(idx);
-
-            mDownloadRequests.remove(idx);
-            mDownloadImageListeners.remove(idx);
-            mDownloaders.remove(idx);
-
-            if (!mDownloaders.contains(downloader)) {
-                // No more listeners are waiting for this download, cancel it
-                downloader.cancel();
-                mDownloadersMap.remove(downloader.getUrl());
-            }
+    public void cancel(ShutterbugManagerListener listener) {
+        for (DownloadRequest request : mRegistry.getRequests(listener)) {
+            cancel(request);
         }
     }
 
     public void cancel(ImageView imageView) {
-        Queue<ShutterbugManagerListener> queue = new LinkedList<ShutterbugManagerListener>();
-        for (ShutterbugManagerListener listener : mCacheListeners) {
-            if (listener instanceof ImageManagerListener && ((ImageManagerListener) listener).mImageView.equals(imageView)) {
-                queue.add(listener);
-            }
-        }
-        for (ShutterbugManagerListener listener : mDownloadImageListeners) {
-            if (listener instanceof ImageManagerListener && ((ImageManagerListener) listener).mImageView.equals(imageView)) {
-                queue.add(listener);
-            }
+        ImageManagerListener listener;
+        synchronized (mRegistry) {
+            listener = mImageViewListeners.remove(imageView);
         }
-        for (ShutterbugManagerListener listener : queue) {
+        if (listener != null) {
             cancel(listener);
         }
     }
@@ -0,0 +1,229 @@
+package com.applidium.shutterbug.utils;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+
+public class ShutterbugScheduler {
+    // Low priority tasks only start when no normal priority task is pending or
+    // running in the same queue
+    public final static int            PRIORITY_LOW               = 0;
+    public final static int            PRIORITY_NORMAL            = 1;
+
+    // Default values, they can be changed on the shared instance at any time
+    private final static int           DEFAULT_MAX_NETWORK_TASKS  = 6;
+    private final static int           DEFAULT_MAX_TASKS_PER_HOST = 4;
+    private final static int           DEFAULT_MAX_DECODE_TASKS   = 2;
+    private final static int           KEEP_ALIVE_SECONDS         = 30;
+
+    private static ShutterbugScheduler sScheduler;
+
+    private TaskQueue                  mNetworkQueue;
+    private TaskQueue                  mDecodeQueue;
+
+    public ShutterbugScheduler() {
+        mNetworkQueue = new TaskQueue("Shutterbug network", DEFAULT_MAX_NETWORK_TASKS, DEFAULT_MAX_TASKS_PER_HOST);
+        mDecodeQueue = new TaskQueue("Shutterbug decode", DEFAULT_MAX_DECODE_TASKS, 0);
+    }
+
+    public static synchronized ShutterbugScheduler getSharedScheduler() {
+        if (sScheduler == null) {
+            sScheduler = new ShutterbugScheduler();
+        }
+        return sScheduler;
+    }
+
+    public void submitNetworkTask(ShutterbugTask<?> task) {
+        mNetworkQueue.submit(task);
+    }
+
+    public void submitDecodeTask(ShutterbugTask<?> task) {
+        mDecodeQueue.submit(task);
+    }
+
+    public void setMaxNetworkTasks(int maxTasks) {
+        mNetworkQueue.setMaxRunning(maxTasks);
+    }
+
+    public void setMaxNetworkTasksPerHost(int maxTasksPerHost) {
+        mNetworkQueue.setMaxRunningPerHost(maxTasksPerHost);
+    }
+
+    public void setMaxDecodeTasks(int maxTasks) {
+        mDecodeQueue.setMaxRunning(maxTasks);
+    }
+
+    // In LIFO mode the most recently submitted tasks run first, which is what
+    // we want when the user scrolls through a list: visible rows were requested
+    // last
+    public void setLifo(boolean lifo) {
+        mNetworkQueue.setLifo(lifo);
+        mDecodeQueue.setLifo(lifo);
+    }
+
+    public int getPendingNetworkTaskCount() {
+        return mNetworkQueue.getPendingCount();
+    }
+
+    public int getRunningNetworkTaskCount() {
+        return mNetworkQueue.getRunningCount();
+    }
+
+    static class TaskQueue {
+        private final ExecutorService               mExecutor;
+        private final LinkedList<ShutterbugTask<?>> mPending        = new LinkedList<ShutterbugTask<?>>();
+        private final Map<String, Integer>          mRunningPerHost = new HashMap<String, Integer>();
+        private int                                 mRunning;
+        // Normal priority tasks pending or running, low priority tasks wait
+        // for them
+        private int                                 mForegroundCount;
+        private int                                 mMaxRunning;
+        private int                                 mMaxRunningPerHost;
+        private boolean                             mLifo;
+
+        TaskQueue(final String name, int maxRunning, int maxRunningPerHost) {
+            mMaxRunning = maxRunning;
+            mMaxRunningPerHost = maxRunningPerHost;
+            // The queue itself bounds the concurrency, the executor only
+            // recycles threads
+            mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    runnable.run();
+                                }
+                            }, name + " #" + mCount.getAndIncrement());
+                        }
+                    });
+        }
+
+        synchronized void setMaxRunning(int maxRunning) {
+            if (maxRunning <= 0) {
+                throw new IllegalArgumentException("maxRunning <= 0");
+            }
+            mMaxRunning = maxRunning;
+            promote();
+        }
+
+        synchronized void setMaxRunningPerHost(int maxRunningPerHost) {
+            mMaxRunningPerHost = maxRunningPerHost;
+            promote();
+        }
+
+        synchronized void setLifo(boolean lifo) {
+            mLifo = lifo;
+        }
+
+        synchronized int getPendingCount() {
+            return mPending.size();
+        }
+
+        synchronized int getRunningCount() {
+            return mRunning;
+        }
+
+        synchronized void submit(ShutterbugTask<?> task) {
+            task.setQueue(this);
+            mPending.addLast(task);
+            if (isForeground(task.getPriority())) {
+                mForegroundCount++;
+            }
+            promote();
+        }
+
+        synchronized boolean remove(ShutterbugTask<?> task) {
+            if (!mPending.remove(task)) {
+                return false;
+            }
+            if (isForeground(task.getPriority())) {
+                mForegroundCount--;
+                promote();
+            }
+            return true;
+        }
+
+        // The priority of a running task no longer matters
+        synchronized void updatePriority(ShutterbugTask<?> task, int priority) {
+            if (mPending.contains(task)) {
+                if (isForeground(task.getPriority())) {
+                    mForegroundCount--;
+                }
+                if (isForeground(priority)) {
+                    mForegroundCount++;
+                }
+            }
+            task.setPriorityInternal(priority);
+            promote();
+        }
+
+        private static boolean isForeground(int priority) {
+            return priority >= PRIORITY_NORMAL;
+        }
+
+        private void promote() {
+            ListIterator<ShutterbugTask<?>> iterator = mPending.listIterator(mLifo ? mPending.size() : 0);
+            while (mRunning < mMaxRunning && (mLifo ? iterator.hasPrevious() : iterator.hasNext())) {
+                final ShutterbugTask<?> task = mLifo ? iterator.previous() : iterator.next();
+                final boolean foreground = isForeground(task.getPriority());
+                if (!foreground && mForegroundCount > 0) {
+                    continue;
+                }
+                final String host = task.getHost();
+                if (host != null && mMaxRunningPerHost > 0 && getRunningCount(host) >= mMaxRunningPerHost) {
+                    continue;
+                }
+                iterator.remove();
+                mRunning++;
+                if (host != null) {
+                    mRunningPerHost.put(host, getRunningCount(host) + 1);
+                }
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            finished(host, foreground);
+                        }
+                    }
+                });
+            }
+        }
+
+        private synchronized void finished(String host, boolean foreground) {
+            mRunning--;
+            if (foreground) {
+                mForegroundCount--;
+            }
+            if (host != null) {
+                int count = getRunningCount(host) - 1;
+                if (count > 0) {
+                    mRunningPerHost.put(host, count);
+                } else {
+                    mRunningPerHost.remove(host);
+                }
+            }
+            promote();
+        }
+
+        private int getRunningCount(String host) {
+            Integer count = mRunningPerHost.get(host);
+            return count != null ? count : 0;
+        }
+    }
+}
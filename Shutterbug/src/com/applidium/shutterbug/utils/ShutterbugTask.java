@@ -0,0 +1,133 @@
+package com.applidium.shutterbug.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+
+public abstract class ShutterbugTask<Result> implements Runnable {
+    private static Handler                         sMainHandler;
+
+    private volatile boolean                       mCancelled;
+    // Guards mThread, so that cancel only interrupts the run that owns it
+    private final Object                           mThreadLock = new Object();
+    private Thread                                 mThread;
+    private volatile ShutterbugScheduler.TaskQueue mQueue;
+    private volatile int                           mPriority = ShutterbugScheduler.PRIORITY_NORMAL;
+
+    protected abstract Result doInBackground();
+
+    protected void onPostExecute(Result result) {
+    }
+
+    protected void onCancelled() {
+    }
+
+    // Tasks whose results are consumed off the main thread can have them
+    // delivered on the worker thread right away
+    protected boolean postsResultToMainThread() {
+        return true;
+    }
+
+    // Tasks sharing a host are throttled together by the network queue, null
+    // means no per-host limit applies
+    public String getHost() {
+        return null;
+    }
+
+    public final int getPriority() {
+        return mPriority;
+    }
+
+    // Only has an effect while the task has not started
+    public final void setPriority(int priority) {
+        ShutterbugScheduler.TaskQueue queue = mQueue;
+        if (queue != null) {
+            queue.updatePriority(this, priority);
+        } else {
+            mPriority = priority;
+        }
+    }
+
+    void setPriorityInternal(int priority) {
+        mPriority = priority;
+    }
+
+    public final boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public final void cancel(boolean mayInterruptIfRunning) {
+        if (mCancelled) {
+            return;
+        }
+        mCancelled = true;
+        ShutterbugScheduler.TaskQueue queue = mQueue;
+        if (queue != null && queue.remove(this)) {
+            // Never started, the background work will not run
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    onCancelled();
+                }
+            });
+            return;
+        }
+        if (mayInterruptIfRunning) {
+            synchronized (mThreadLock) {
+                if (mThread != null) {
+                    mThread.interrupt();
+                }
+            }
+        }
+    }
+
+    void setQueue(ShutterbugScheduler.TaskQueue queue) {
+        mQueue = queue;
+    }
+
+    @Override
+    public final void run() {
+        if (mCancelled) {
+            return;
+        }
+        synchronized (mThreadLock) {
+            mThread = Thread.currentThread();
+        }
+        Result result = null;
+        try {
+            result = doInBackground();
+        } finally {
+            synchronized (mThreadLock) {
+                mThread = null;
+                // Clear a pending interruption so it does not leak to the next
+                // task run by this pooled thread
+                Thread.interrupted();
+            }
+        }
+        final Result finalResult = result;
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                if (mCancelled) {
+                    onCancelled();
+                } else {
+                    onPostExecute(finalResult);
+                }
+            }
+        });
+    }
+
+    private void deliver(Runnable runnable) {
+        if (postsResultToMainThread()) {
+            postToMainThread(runnable);
+        } else {
+            runnable.run();
+        }
+    }
+
+    static synchronized void postToMainThread(Runnable runnable) {
+        if (sMainHandler == null) {
+            sMainHandler = new Handler(Looper.getMainLooper());
+        }
+        sMainHandler.post(runnable);
+    }
+}
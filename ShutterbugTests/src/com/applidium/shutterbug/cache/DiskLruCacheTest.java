@@ -0,0 +1,193 @@
+package com.applidium.shutterbug.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.test.AndroidTestCase;
+
+// Covers the journal: the migration between its text and binary formats, the
+// recovery from a truncated last record and from a failed write. Losing the
+// journal loses the whole cache, later changes must keep these passing.
+public class DiskLruCacheTest extends AndroidTestCase {
+    private final static int    APP_VERSION = 1;
+    private final static int    VALUE_COUNT = 2;
+    private final static long   MAX_SIZE    = 1024 * 1024;
+    // Enough commits of a single entry to make the cache rebuild its journal
+    private final static int    REBUILD_OPS = 2100;
+    private final static int    MAX_POLLS   = 500;
+    private final static long   POLL_DELAY  = 10;
+
+    private File                mDirectory;
+    private DiskLruCache        mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "DiskLruCacheTest");
+        deleteRecursively(mDirectory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mCache != null) {
+            mCache.close();
+        }
+        deleteRecursively(mDirectory);
+        super.tearDown();
+    }
+
+    public void testTextToBinaryAndBack() throws Exception {
+        mCache = open(false);
+        set("a", "a0", "a1");
+        set("b", "b0", "b1");
+        mCache.remove("b");
+        long size = mCache.size();
+        mCache.close();
+
+        mCache = open(true);
+        assertValues("a", "a0", "a1");
+        assertNull(mCache.get("b"));
+        assertEquals(size, mCache.size());
+        assertTrue(journal(true).exists());
+        assertFalse(journal(false).exists());
+        set("c", "c0", "c1");
+        mCache.close();
+
+        mCache = open(false);
+        assertValues("a", "a0", "a1");
+        assertValues("c", "c0", "c1");
+        assertNull(mCache.get("b"));
+        assertTrue(journal(false).exists());
+        assertFalse(journal(true).exists());
+    }
+
+    public void testTruncatedTextRecord() throws Exception {
+        // A CLEAN record cut before its lengths and its line feed
+        testTruncatedRecord(false, "CLEAN b".getBytes("UTF-8"));
+    }
+
+    public void testTruncatedBinaryRecord() throws Exception {
+        // A CLEAN record announcing a 5 bytes key, only one of them written
+        testTruncatedRecord(true, new byte[] { 1, 0, 5, 'b' });
+    }
+
+    private void testTruncatedRecord(boolean binaryJournal, byte[] truncatedRecord) throws Exception {
+        mCache = open(binaryJournal);
+        set("a", "a0", "a1");
+        mCache.close();
+        FileOutputStream out = new FileOutputStream(journal(binaryJournal), true);
+        out.write(truncatedRecord);
+        out.close();
+
+        // The records appended from now on must not follow the truncated one
+        mCache = open(binaryJournal);
+        assertValues("a", "a0", "a1");
+        set("c", "c0", "c1");
+        mCache.close();
+
+        mCache = open(binaryJournal);
+        assertValues("a", "a0", "a1");
+        assertValues("c", "c0", "c1");
+        assertEquals(8, mCache.size());
+    }
+
+    public void testFailedTextJournalWriteIsRepaired() throws Exception {
+        testFailedJournalWriteIsRepaired(false);
+    }
+
+    public void testFailedBinaryJournalWriteIsRepaired() throws Exception {
+        testFailedJournalWriteIsRepaired(true);
+    }
+
+    private void testFailedJournalWriteIsRepaired(boolean binaryJournal) throws Exception {
+        mCache = open(binaryJournal);
+        set("a", "a0", "a1");
+        // The journal can't be rebuilt while a directory takes the place of
+        // its temporary file
+        File journalTmp = new File(mDirectory, binaryJournal ? DiskLruCache.BINARY_JOURNAL_FILE_TMP : DiskLruCache.JOURNAL_FILE_TMP);
+        assertTrue(journalTmp.mkdir());
+        for (int i = 0; i < REBUILD_OPS; i++) {
+            trySet("b", "b" + i, "b");
+        }
+        assertTrue("the journal rebuild never failed", awaitEditFailure());
+
+        // The cache repairs the journal on its own once it can be written
+        assertTrue(journalTmp.delete());
+        assertTrue("the journal was never repaired", awaitEditSuccess("c", "c0", "c1"));
+        set("d", "d0", "d1");
+        mCache.close();
+
+        mCache = open(binaryJournal);
+        assertValues("a", "a0", "a1");
+        assertValues("c", "c0", "c1");
+        assertValues("d", "d0", "d1");
+    }
+
+    private boolean awaitEditFailure() throws InterruptedException {
+        for (int i = 0; i < MAX_POLLS; i++) {
+            if (!trySet("b", "b", "b")) {
+                return true;
+            }
+            Thread.sleep(POLL_DELAY);
+        }
+        return false;
+    }
+
+    private boolean awaitEditSuccess(String key, String value0, String value1) throws InterruptedException {
+        for (int i = 0; i < MAX_POLLS; i++) {
+            if (trySet(key, value0, value1)) {
+                return true;
+            }
+            Thread.sleep(POLL_DELAY);
+        }
+        return false;
+    }
+
+    private DiskLruCache open(boolean binaryJournal) throws IOException {
+        return DiskLruCache.open(mDirectory, APP_VERSION, VALUE_COUNT, MAX_SIZE, binaryJournal);
+    }
+
+    private File journal(boolean binaryJournal) {
+        return new File(mDirectory, binaryJournal ? DiskLruCache.BINARY_JOURNAL_FILE : DiskLruCache.JOURNAL_FILE);
+    }
+
+    private void set(String key, String value0, String value1) throws IOException {
+        DiskLruCache.Editor editor = mCache.edit(key);
+        assertNotNull(editor);
+        editor.set(0, value0);
+        editor.set(1, value1);
+        editor.commit();
+    }
+
+    // Returns false if the journal failed to record the edit
+    private boolean trySet(String key, String value0, String value1) {
+        try {
+            set(key, value0, value1);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void assertValues(String key, String value0, String value1) throws IOException {
+        DiskLruCache.Snapshot snapshot = mCache.get(key);
+        assertNotNull(key + " is missing", snapshot);
+        try {
+            assertEquals(value0, snapshot.getString(0));
+            assertEquals(value1, snapshot.getString(1));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}